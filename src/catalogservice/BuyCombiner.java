@@ -0,0 +1,134 @@
+package catalogservice;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Combines the concurrent buys of one product, so a hot product is decremented, logged and invalidated once per batch
+ * instead of once per buy.
+ *
+ * A buyer queues its request and tries to become the combiner. The combiner takes every queued buy, grants them in
+ * arrival order while there is enough stock, takes the granted total out of stock with one compare-and-set, appends
+ * one stock log record and invalidates the product once. Then it answers every buy of the batch. Buyers that are not
+ * the combiner park until they are answered, or until they are at the head of the queue when a combiner finishes and
+ * have to take over. They are only woken for one of the two, never to poll. While a combiner waits for the stock log
+ * force, new buys queue up and go into the next batch, so the batches grow with the load.
+ */
+public class BuyCombiner {
+    private final CatalogItem item;
+    private final StockLog stockLog;
+    private final Invalidation invalidation = Invalidation.getInstance();
+    private final Queue<Buy> pending = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock combining = new ReentrantLock();
+
+    public BuyCombiner(CatalogItem item, StockLog stockLog) {
+        this.item = item;
+        this.stockLog = stockLog;
+    }
+
+    /**
+     * Takes the quantity out of stock once it is logged. Returns the remaining quantity after this buy, or -1 if there
+     * was not enough stock left for it or the buy could not be logged.
+     */
+    public int buy(int quantity) {
+        Buy buy = new Buy(quantity);
+        pending.add(buy);
+        while(!buy.done) {
+            if(combining.tryLock()) {
+                try {
+                    combine();
+                } finally {
+                    combining.unlock();
+                }
+                // a buyer that queued after the drain may have failed its tryLock while this combiner held the lock,
+                // wake the head of the queue to take over. It combines everyone queued behind it
+                Buy next = pending.peek();
+                if(next != null) {
+                    LockSupport.unpark(next.buyer);
+                }
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        return buy.remaining;
+    }
+
+    // Applies every queued buy as one batch, called holding the combining lock
+    private void combine() {
+        List<Buy> batch = new ArrayList<>();
+        Buy buy;
+        while((buy = pending.poll()) != null) {
+            batch.add(buy);
+        }
+        if(batch.isEmpty()) {
+            return;
+        }
+
+        int total;
+        int remaining;
+        while(true) {
+            // grant the buys in arrival order, a buy that does not fit fails and the later smaller ones may still fit
+            int available = item.getQuantity();
+            total = 0;
+            for(Buy queued : batch) {
+                queued.granted = queued.quantity > 0 && total + queued.quantity <= available;
+                if(queued.granted) {
+                    total += queued.quantity;
+                }
+            }
+            if(total == 0) {
+                remaining = available;
+                break;
+            }
+            // a cart may have bought the product since it was read, then grant again with what is left
+            remaining = item.tryDecrement(total);
+            if(remaining >= 0) {
+                break;
+            }
+        }
+
+        if(total > 0) {
+            try {
+                stockLog.append(item.getName(), -total);
+                invalidation.invalidateProduct(item.getName());
+            } catch (IOException e) {
+                // nothing of the batch is bought if it could not be logged
+                e.printStackTrace();
+                item.addQuantity(total);
+                for(Buy queued : batch) {
+                    queued.granted = false;
+                }
+            }
+        }
+        // every granted buy sees the quantity left right after it, as if the buys ran one by one
+        int left = remaining + total;
+        for(Buy queued : batch) {
+            if(queued.granted) {
+                left -= queued.quantity;
+                queued.remaining = left;
+            } else {
+                queued.remaining = -1;
+            }
+            queued.done = true;
+            LockSupport.unpark(queued.buyer);
+        }
+    }
+
+    private static class Buy {
+        final int quantity;
+        final Thread buyer = Thread.currentThread();
+        boolean granted;
+        int remaining;
+        // written last by the combiner before it unparks the buyer, so the buyer sees remaining once it sees done
+        volatile boolean done;
+
+        Buy(int quantity) {
+            this.quantity = quantity;
+        }
+    }
+}
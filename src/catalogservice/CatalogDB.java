@@ -1,17 +1,20 @@
 package catalogservice;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class CatalogDB {
 //    private final String DATABASE_FILE = "/usr/src/app/data/catalog.csv"; // file path to use mounted volume
      private static final String DATABASE_FILE = "catalogservice/data/catalog.csv";
-    private final Object fileLock = new Object();
+    private static final String STOCK_LOG_FILE = "catalogservice/data/stock.log";
+    private static final long CHECKPOINT_INTERVAL_MS = 30000;
+    private final StockLog stockLog = new StockLog(DATABASE_FILE, STOCK_LOG_FILE);
+    // one combiner per product, created on its first buy
+    private final Map<String, BuyCombiner> combiners = new ConcurrentHashMap<>();
 
     public static Map<String, CatalogItem> catalog = new ConcurrentHashMap<>();
     public CatalogDB() {
@@ -19,25 +22,16 @@ public class CatalogDB {
 
         Thread stockCheck = new Thread(new StockCheck());
         stockCheck.start();
+
+        Thread checkpoint = new Thread(new Checkpoint());
+        checkpoint.start();
     }
 
-    // Load catalog from disk
+    // Load catalog from disk, replaying the stock changes logged since the last checkpoint
     private void loadCatalogFromDisk() {
-        try (BufferedReader br = new BufferedReader(new FileReader(DATABASE_FILE))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                if(line.isBlank()) {
-                    continue;
-                }
-                String[] parts = line.split(",");
-                String name = parts[0].trim().toLowerCase();
-                double price = Double.parseDouble(parts[1].trim());
-                int quantity = Integer.parseInt(parts[2].trim());
-                catalog.put(name, new CatalogItem(name, price, quantity));
-                System.out.println(name + " " + price + " " + quantity);
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e.getMessage());
+        stockLog.recover(catalog);
+        for(CatalogItem item : catalog.values()) {
+            System.out.println(item.getName() + " " + item.getPrice() + " " + item.getQuantity());
         }
     }
 
@@ -46,22 +40,107 @@ public class CatalogDB {
         return catalog.get(productName.toLowerCase());
     }
 
-    public void commit() {
-        synchronized (fileLock) {
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter(DATABASE_FILE))) {
-                for(CatalogItem item : catalog.values()) {
-                    writer.write(item.getName() + ", " + item.getPrice() + ", " + item.getQuantity() + "\n");
-                }
-                writer.flush();
-                System.out.println("File has been written with lock.");
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * Takes the given quantity of a product out of stock, logs the change and invalidates the product. Concurrent buys
+     * of the same product are combined into one decrement, one log record and one invalidation, see
+     * {@link BuyCombiner}. Returns the remaining quantity, or -1 if the product does not exist or there is not enough
+     * stock.
+     */
+    public int buy(String productName, int quantity) {
+        CatalogItem item = getProduct(productName);
+        if(item == null || quantity <= 0) {
+            return -1;
+        }
+        return combiners.computeIfAbsent(item.getName(), name -> new BuyCombiner(item, stockLog)).buy(quantity);
+    }
+
+    /**
+     * Takes the given quantities of several products out of stock, all of them or none, and logs them as one change.
+     * Returns the remaining quantities, one per product in the order of the given map, or null if a product does not
+     * exist, does not have enough stock or the change could not be logged.
+     */
+    public int[] buyAll(Map<String, Integer> quantities) {
+        Map<CatalogItem, Integer> items = new LinkedHashMap<>();
+        for(Map.Entry<String, Integer> quantity : quantities.entrySet()) {
+            CatalogItem item = getProduct(quantity.getKey());
+            if(item == null || quantity.getValue() <= 0) {
+                return null;
+            }
+            items.merge(item, quantity.getValue(), Integer::sum);
+        }
+        List<CatalogItem> taken = new ArrayList<>();
+        Map<String, Integer> deltas = new LinkedHashMap<>();
+        for(Map.Entry<CatalogItem, Integer> item : items.entrySet()) {
+            if(item.getKey().tryDecrement(item.getValue()) < 0) {
+                // put back what was already taken, the other buyers never see more stock than there is
+                putBack(taken, deltas);
+                return null;
             }
+            taken.add(item.getKey());
+            deltas.put(item.getKey().getName(), -item.getValue());
         }
+        try {
+            stockLog.append(deltas);
+        } catch (IOException e) {
+            e.printStackTrace();
+            putBack(taken, deltas);
+            return null;
+        }
+        int[] remaining = new int[quantities.size()];
+        int i = 0;
+        for(String productName : quantities.keySet()) {
+            remaining[i++] = getProduct(productName).getQuantity();
+        }
+        return remaining;
+    }
+
+    /**
+     * Puts the given quantities of several products back into stock, for a buy whose order was not taken after all,
+     * and logs them as one change. The change is logged before the stock is raised, so no buyer can take stock that
+     * a restart would not bring back. Returns the remaining quantities like buyAll, or null if a product does not
+     * exist or the change could not be logged.
+     */
+    public int[] returnAll(Map<String, Integer> quantities) {
+        Map<CatalogItem, Integer> items = new LinkedHashMap<>();
+        Map<String, Integer> deltas = new LinkedHashMap<>();
+        for(Map.Entry<String, Integer> quantity : quantities.entrySet()) {
+            CatalogItem item = getProduct(quantity.getKey());
+            if(item == null || quantity.getValue() <= 0) {
+                return null;
+            }
+            items.merge(item, quantity.getValue(), Integer::sum);
+            deltas.merge(item.getName(), quantity.getValue(), Integer::sum);
+        }
+        try {
+            stockLog.append(deltas);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        for(Map.Entry<CatalogItem, Integer> item : items.entrySet()) {
+            item.getKey().addQuantity(item.getValue());
+        }
+        int[] remaining = new int[quantities.size()];
+        int i = 0;
+        for(String productName : quantities.keySet()) {
+            remaining[i++] = getProduct(productName).getQuantity();
+        }
+        return remaining;
+    }
+
+    private static void putBack(List<CatalogItem> taken, Map<String, Integer> deltas) {
+        for(CatalogItem takenItem : taken) {
+            takenItem.addQuantity(-deltas.get(takenItem.getName()));
+        }
+    }
+
+    // Persist a stock change as a single append to the stock log
+    public void commit(String productName, int delta) throws IOException {
+        stockLog.append(productName, delta);
     }
 
     public class StockCheck implements Runnable {
-        Invalidation invalidation = new Invalidation();
+        Invalidation invalidation = Invalidation.getInstance();
         @Override
         public void run() {
             while(true) {
@@ -71,15 +150,37 @@ public class CatalogDB {
                     throw new RuntimeException(e);
                 }
                 for (CatalogItem item : catalog.values()) {
-                    if (item.getQuantity() <= 0) {
-                        item.setQuantity(100);
-                        catalog.put(item.getName(), item);
+                    int delta = item.restockIfEmpty(100);
+                    if (delta > 0) {
+                        try {
+                            commit(item.getName(), delta);
+                        } catch (IOException e) {
+                            // a restock that is not logged would be lost on restart, try again next time. Buyers may
+                            // already have taken some of it, so only what is left is taken back
+                            e.printStackTrace();
+                            item.decrementAtMost(delta);
+                            continue;
+                        }
                         invalidation.invalidateProduct(item.getName());
                     }
                 }
-                commit();
                 System.out.println("Updated stock values");
             }
         }
     }
+
+    // Periodically folds the stock log into catalog.csv so the log and the startup replay stay short
+    public class Checkpoint implements Runnable {
+        @Override
+        public void run() {
+            while(true) {
+                try {
+                    Thread.sleep(CHECKPOINT_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                stockLog.checkpoint();
+            }
+        }
+    }
 }
@@ -1,14 +1,20 @@
 package catalogservice;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A product in the catalog. The quantity is an AtomicInteger so stock can be checked and decremented in a single
+ * compare-and-set without locking, and buys of different products never contend with each other.
+ */
 public class CatalogItem {
     private String name;
     private double price;
-    private int quantity;
+    private final AtomicInteger quantity;
 
     public CatalogItem(String name, double price, int quantity) {
         this.name = name;
         this.price = price;
-        this.quantity = quantity;
+        this.quantity = new AtomicInteger(quantity);
     }
 
     public String getName() {
@@ -20,7 +26,7 @@ public class CatalogItem {
     }
 
     public int getQuantity() {
-        return quantity;
+        return quantity.get();
     }
 
     public void setName(String name) {
@@ -32,6 +38,56 @@ public class CatalogItem {
     }
 
     public void setQuantity(int quantity) {
-        this.quantity = quantity;
+        this.quantity.set(quantity);
+    }
+
+    public int addQuantity(int delta) {
+        return quantity.addAndGet(delta);
+    }
+
+    /**
+     * Atomically takes the given quantity out of stock if enough is available, retrying on contention.
+     * Returns the remaining quantity, or -1 if there was not enough stock.
+     */
+    public int tryDecrement(int amount) {
+        while(true) {
+            int current = quantity.get();
+            if(current < amount) {
+                return -1;
+            }
+            if(quantity.compareAndSet(current, current - amount)) {
+                return current - amount;
+            }
+        }
+    }
+
+    /**
+     * Atomically takes up to the given quantity out of stock, never going below zero, retrying on contention.
+     * Returns the quantity taken.
+     */
+    public int decrementAtMost(int amount) {
+        while(true) {
+            int current = quantity.get();
+            int taken = Math.max(0, Math.min(current, amount));
+            if(taken == 0 || quantity.compareAndSet(current, current - taken)) {
+                return taken;
+            }
+        }
+    }
+
+    /**
+     * Atomically refills the stock to the given quantity if it is sold out.
+     * Returns the quantity added, or 0 if the item was still in stock.
+     */
+    public int restockIfEmpty(int refill) {
+        while(true) {
+            int current = quantity.get();
+            if(current > 0) {
+                return 0;
+            }
+            if(quantity.compareAndSet(current, refill)) {
+                return refill - current;
+            }
+        }
     }
 }
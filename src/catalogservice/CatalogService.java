@@ -1,135 +1,167 @@
 package catalogservice;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
 
 /**
  * Catalog Service will receive request from order service or frontend service.
  *
- * It handles 2 kind of requests:
+ * It handles 6 kind of requests:
  * 1. query request: This will return the amount and quantity available for the requested item.
- * 2. buy request: This will update the database file catalog.csv with the updated quantity.
+ * 2. mquery request, mquery:<name1>,<name2>,...: Batch version of query. The reply is a single line with one
+ * "price,quantity" or "-1" entry per requested product, in request order, separated by ';'.
+ * 3. buy request: This will update the database file catalog.csv with the updated quantity. Concurrent buys of the same
+ * product are combined and logged as one change.
+ * 4. mbuy request, mbuy:<name1>,<quantity1>;<name2>,<quantity2>;...: Buys all the products or none of them, with one
+ * stock log record. The reply is the remaining quantities separated by ';', or "-1".
+ * 5. subscribe request, subscribe:<host:port>: A frontend service registers (and periodically renews) itself to receive
+ * cache invalidations. The reply is "<epoch>,<seq>", see {@link Invalidation}.
+ * 6. cancel request, cancel:<name1>,<quantity1>;<name2>,<quantity2>;...: Puts the quantities of a buy back into stock,
+ * for an order the order service could not log after it bought the products. The reply is like the one of mbuy.
  */
 public class CatalogService {
     static CatalogDB catalogDB = new CatalogDB();
-    static Invalidation invalidation = new Invalidation();
+    static Invalidation invalidation = Invalidation.getInstance();
 
     public static void main(String[] args) {
-        ServerSocket server = null;
-
         try {
-            // server is listening on port 8085
-            server = new ServerSocket(8085);
-            server.setReuseAddress(true);
-            System.out.println("CatalogService running on port: 8085");
-
-            // create ThreadPool
-            ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(2);
-
-            // running infinite loop for getting client request
-            while (true) {
-                // socket object to receive incoming client requests
-                Socket client = server.accept();
-
-                // Displaying that new client is connected to server
-                System.out.println("New client connected: " + client.getInetAddress());
-
-                // create a new thread object
-                ClientHandler clientSock = new ClientHandler(client);
-
-                // Execute the client handler on the executor
-                executor.execute(clientSock);
-            }
+            // create ThreadPool, size configurable through CATALOG_WORKERS
+            int workers = getWorkerCount();
+            ExecutorService executor = newExecutor(workers);
+
+            // server is listening on port 8085, the selector thread hands complete request lines to the executor
+            LineServer server = new LineServer(8085, executor, new ClientHandler());
+            System.out.println("CatalogService running on port: 8085 with "
+                    + (useVirtualThreads() ? "virtual threads" : workers + " worker threads"));
+            server.serve();
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            if (server != null) {
-                try {
-                    server.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
         }
     }
 
-    // ClientHandler class
-    private static class ClientHandler implements Runnable {
-        private final Socket clientSocket;
+    // EXECUTION_MODE=virtual runs every request on its own virtual thread instead of the fixed worker pool
+    private static boolean useVirtualThreads() {
+        return "virtual".equalsIgnoreCase(System.getenv("EXECUTION_MODE"));
+    }
 
-        // Constructor
-        public ClientHandler(Socket socket) {
-            this.clientSocket = socket;
+    private static ExecutorService newExecutor(int threads) {
+        if(useVirtualThreads()) {
+            return Executors.newVirtualThreadPerTaskExecutor();
         }
+        return Executors.newFixedThreadPool(threads);
+    }
 
-        public void run() {
-            PrintWriter out = null;
-            BufferedReader in = null;
-
-            try {
-                // get the outputstream of client
-                out = new PrintWriter(clientSocket.getOutputStream(), true);
-
-                // get the inputstream of client
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+    private static int getWorkerCount() {
+        String workers = System.getenv("CATALOG_WORKERS");
+        if(workers == null || workers.isBlank()) {
+            return 2;
+        }
+        return Integer.parseInt(workers.trim());
+    }
 
-                String line;
-                while ((line = in.readLine()) != null) {
-                    // Parse request and handle accordingly
-                    System.out.println("Received:" + line);
-                    String[] requestTypeAndData = line.split(":");
-                    if(requestTypeAndData[0].equals("query")) {
-                        CatalogItem item = catalogDB.getProduct(requestTypeAndData[1]);
-                        if (item != null && item.getQuantity() != 0) {
-                            out.println(item.getPrice() + "," + item.getQuantity());
-                        } else {
-                            out.println("-1");
-                        }
-                    } else if(requestTypeAndData[0].equals("buy")) {
-                        String[] itemAndQuantity = requestTypeAndData[1].split(",");
-                        CatalogItem item = catalogDB.getProduct(itemAndQuantity[0]);
-                        int quantity = Integer.parseInt(itemAndQuantity[1]);
-                        if (item != null && item.getQuantity() >= quantity) {
-                            // Decrement stock in the catalog
-                            System.out.println(item.getName() + item.getQuantity());
-                            item.setQuantity(item.getQuantity() - quantity);
-                            catalogDB.commit();
-                            invalidation.invalidateProduct(item.getName());
-                            // Send success response
-                            out.println(item.getQuantity());
-                        } else {
-                            // Send failure message to the client
-                            out.println("-1");
-                        }
+    // ClientHandler class
+    private static class ClientHandler implements LineServer.RequestHandler {
+
+        public void handle(String line, LineServer.Connection out) {
+            // Parse request and handle accordingly
+            System.out.println("Received:" + line);
+            String[] requestTypeAndData = line.split(":");
+            // product names cannot contain ':', every request is "type:data" except for "subscribe:host:port"
+            boolean subscribe = requestTypeAndData[0].equals("subscribe");
+            if(subscribe ? requestTypeAndData.length < 2 : requestTypeAndData.length != 2) {
+                out.println("-1");
+                return;
+            }
+            if(subscribe) {
+                out.println(invalidation.subscribe(line.substring(line.indexOf(':') + 1).trim()));
+            } else if(requestTypeAndData[0].equals("query")) {
+                out.println(queryProduct(requestTypeAndData[1]));
+            } else if(requestTypeAndData[0].equals("mquery")) {
+                StringBuilder reply = new StringBuilder();
+                for(String productName : requestTypeAndData[1].split(",")) {
+                    if(reply.length() > 0) {
+                        reply.append(";");
                     }
+                    reply.append(queryProduct(productName.trim()));
                 }
-
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                try {
-                    if (out != null) {
-                        out.close();
+                out.println(reply);
+            } else if(requestTypeAndData[0].equals("buy")) {
+                String[] itemAndQuantity = requestTypeAndData[1].split(",");
+                int quantity = itemAndQuantity.length == 2 ? parseQuantity(itemAndQuantity[1]) : -1;
+                if(quantity <= 0) {
+                    out.println("-1");
+                    return;
+                }
+                // Check and decrement the stock in one atomic step so concurrent buyers cannot oversell, the product
+                // is invalidated once for all the buys combined with this one
+                int remaining = catalogDB.buy(itemAndQuantity[0], quantity);
+                if (remaining >= 0) {
+                    // Send success response
+                    out.println(remaining);
+                } else {
+                    // Send failure message to the client
+                    out.println("-1");
+                }
+            } else if(requestTypeAndData[0].equals("mbuy") || requestTypeAndData[0].equals("cancel")) {
+                Map<String, Integer> quantities = parseQuantities(requestTypeAndData[1]);
+                if(quantities == null) {
+                    out.println("-1");
+                    return;
+                }
+                int[] remaining = requestTypeAndData[0].equals("mbuy") ? catalogDB.buyAll(quantities)
+                        : catalogDB.returnAll(quantities);
+                if (remaining != null) {
+                    StringBuilder reply = new StringBuilder();
+                    for(String productName : quantities.keySet()) {
+                        invalidation.invalidateProduct(productName);
                     }
-                    if (in != null) {
-                        in.close();
-                        clientSocket.close();
+                    for(int quantity : remaining) {
+                        reply.append(reply.length() > 0 ? ";" : "").append(quantity);
                     }
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    out.println(reply);
+                } else {
+                    out.println("-1");
                 }
+            } else {
+                // unknown request
+                out.println("-1");
+            }
+        }
+
+        // "name,quantity;name,quantity;..." as a map, the same product twice is summed. Null if a quantity is not
+        // a positive number
+        private Map<String, Integer> parseQuantities(String items) {
+            Map<String, Integer> quantities = new LinkedHashMap<>();
+            for(String itemAndQuantity : items.split(";")) {
+                String[] parts = itemAndQuantity.split(",");
+                int quantity = parts.length == 2 ? parseQuantity(parts[1]) : -1;
+                if(quantity <= 0) {
+                    return null;
+                }
+                quantities.merge(parts[0].trim().toLowerCase(), quantity, Integer::sum);
+            }
+            return quantities;
+        }
+
+        // the quantity of a buy, or -1 if it is not a number
+        private int parseQuantity(String quantity) {
+            try {
+                return Integer.parseInt(quantity.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        private String queryProduct(String productName) {
+            CatalogItem item = catalogDB.getProduct(productName);
+            int quantity = item != null ? item.getQuantity() : 0;
+            if (quantity > 0) {
+                return item.getPrice() + "," + quantity;
             }
+            return "-1";
         }
     }
 }
@@ -0,0 +1,200 @@
+package catalogservice;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group commit writer for durable records.
+ *
+ * Callers queue their records and block until the record is on disk. A single flusher thread takes up to
+ * maxBatchSize queued records, hands them to the sink in one write and forces them to disk with one call, and only
+ * then acknowledges every caller in the batch. maxWaitMillis is how long the flusher waits for a batch to fill up:
+ * 0 flushes whatever queued up during the previous force (lowest latency), higher values trade latency for fewer
+ * forces.
+ */
+public class GroupCommitWriter {
+
+    /**
+     * Destination of a batch. Implementations must write all the records and force them to disk before returning.
+     */
+    public interface Sink {
+        void write(List<String> records) throws IOException;
+    }
+
+    private static class Pending {
+        final String record;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Pending(String record) {
+            this.record = record;
+        }
+    }
+
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Sink sink;
+    private final int maxBatchSize;
+    private final long maxWaitMillis;
+
+    public GroupCommitWriter(String name, Sink sink, int maxBatchSize, long maxWaitMillis) {
+        this.sink = sink;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxWaitMillis = Math.max(0, maxWaitMillis);
+
+        Thread flusher = new Thread(this::flushLoop, name + "-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Creates a writer configured through the environment variables <prefix>_COMMIT_BATCH_SIZE and
+     * <prefix>_COMMIT_MAX_WAIT_MS.
+     */
+    public static GroupCommitWriter fromEnv(String prefix, Sink sink) {
+        int batchSize = getIntEnv(prefix + "_COMMIT_BATCH_SIZE", 64);
+        int maxWait = getIntEnv(prefix + "_COMMIT_MAX_WAIT_MS", 0);
+        System.out.println(prefix + " group commit: batch size " + batchSize + ", max wait " + maxWait + "ms");
+        return new GroupCommitWriter(prefix.toLowerCase(), sink, batchSize, maxWait);
+    }
+
+    /**
+     * Queues the record without waiting for it to be written.
+     */
+    public CompletableFuture<Void> submit(String record) {
+        Pending pending = new Pending(record);
+        queue.add(pending);
+        return pending.done;
+    }
+
+    /**
+     * Queues the record and blocks until it has been forced to disk.
+     */
+    public void append(String record) throws IOException {
+        try {
+            submit(record).join();
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void flushLoop() {
+        List<Pending> batch = new ArrayList<>(maxBatchSize);
+        List<String> records = new ArrayList<>(maxBatchSize);
+        while(true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, maxBatchSize - batch.size());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+                while(batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if(remaining <= 0) {
+                        break;
+                    }
+                    Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if(next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, maxBatchSize - batch.size());
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+
+            for(Pending pending : batch) {
+                records.add(pending.record);
+            }
+            try {
+                sink.write(records);
+                for(Pending pending : batch) {
+                    pending.done.complete(null);
+                }
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                UncheckedIOException failure = new UncheckedIOException(e instanceof IOException
+                        ? (IOException) e : new IOException(e));
+                for(Pending pending : batch) {
+                    pending.done.completeExceptionally(failure);
+                }
+            }
+            batch.clear();
+            records.clear();
+        }
+    }
+
+    /**
+     * Sink appending every record as a line to a file.
+     */
+    public static class FileSink implements Sink {
+        private FileChannel channel;
+
+        public FileSink(Path file) throws IOException {
+            open(file);
+        }
+
+        private void open(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        }
+
+        /**
+         * Moves the current file to rolledFile and continues appending to a fresh file.
+         */
+        public synchronized void roll(Path file, Path rolledFile) throws IOException {
+            channel.close();
+            try {
+                Files.move(file, rolledFile, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                open(file);
+            }
+        }
+
+        @Override
+        public synchronized void write(List<String> records) throws IOException {
+            StringBuilder lines = new StringBuilder();
+            for(String record : records) {
+                lines.append(record).append('\n');
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            long size = channel.size();
+            try {
+                while(buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                // cut off what was written of the failed batch, so the next batch does not continue a torn line
+                try {
+                    channel.truncate(size);
+                } catch (IOException truncateException) {
+                    e.addSuppressed(truncateException);
+                }
+                throw e;
+            }
+        }
+    }
+
+    private static int getIntEnv(String name, int defaultValue) {
+        String value = System.getenv(name);
+        if(value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.trim());
+    }
+}
@@ -1,32 +1,181 @@
 package catalogservice;
 
-import java.io.IOException;
 import java.net.URI;
-import java.net.URISyntaxException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpRequest.BodyPublishers;
-import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Sends cache invalidations to every subscribed frontend service in the background.
+ *
+ * Frontends subscribe with the "subscribe:<host:port>" request and renew the subscription periodically, subscribers
+ * that stop renewing are dropped after SUBSCRIBER_TTL_MS. The frontend in FRONTEND_HOST, if set, is always subscribed.
+ *
+ * invalidateProduct only queues the product name for every subscriber, so buys never wait on a frontend. Every
+ * BATCH_WINDOW_MS the queued names of each subscriber are sent to it as one POST /invalidate request with the body
+ * {"epoch":1715000000000,"seq":7,"names":["a","b"]}. The subscribers are sent to in parallel. A product invalidated
+ * several times within the window is sent once. Failed requests are retried with exponential backoff.
+ *
+ * Every subscriber has its own sequence number, incremented once per batch, and at most one batch in flight. A
+ * frontend that sees a gap in the sequence has missed a batch and clears its whole cache. The subscribe reply
+ * "<epoch>,<seq>" carries the last sequence number that was delivered or given up on, so a frontend also notices
+ * batches it missed while it had nothing else to receive. The epoch changes when the catalog service restarts.
+ */
 public class Invalidation {
-    HttpClient client = HttpClient.newHttpClient();
-    String remoteHost = System.getenv("FRONTEND_HOST");
+    private static final long BATCH_WINDOW_MS = 20;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_BACKOFF_MS = 100;
+    private static final long SUBSCRIBER_TTL_MS = 30000;
+
+    private static Invalidation instance = null;
+
+    private final long epoch = System.currentTimeMillis();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "invalidation");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2)).build();
+    private final Map<String, Subscriber> subscribers = new ConcurrentHashMap<>();
+
+    private Invalidation() {
+        String remoteHost = System.getenv("FRONTEND_HOST");
+        if(remoteHost != null && !remoteHost.isBlank()) {
+            subscribers.put(remoteHost, new Subscriber(remoteHost, Long.MAX_VALUE));
+        }
+        scheduler.scheduleWithFixedDelay(this::flush, BATCH_WINDOW_MS, BATCH_WINDOW_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized Invalidation getInstance() {
+        if(instance == null) {
+            instance = new Invalidation();
+        }
+        return instance;
+    }
+
+    /**
+     * Adds or renews a subscriber and returns "<epoch>,<seq>" with the last sequence number that was delivered to it
+     * or given up on.
+     */
+    public String subscribe(String host) {
+        long expiresAt = System.currentTimeMillis() + SUBSCRIBER_TTL_MS;
+        Subscriber subscriber = subscribers.compute(host, (key, existing) -> {
+            if(existing == null) {
+                System.out.println("New invalidation subscriber: " + host);
+                return new Subscriber(host, expiresAt);
+            }
+            existing.expiresAt = Math.max(existing.expiresAt, expiresAt);
+            return existing;
+        });
+        return epoch + "," + subscriber.completedSequence;
+    }
 
     public void invalidateProduct(String productName) {
+        // Frontends cache products under their lower case names
+        String name = productName.toLowerCase();
+        for(Subscriber subscriber : subscribers.values()) {
+            subscriber.pending.add(name);
+        }
+    }
+
+    private void flush() {
+        long now = System.currentTimeMillis();
+        for(Subscriber subscriber : subscribers.values()) {
+            if(subscriber.expiresAt < now) {
+                System.out.println("Invalidation subscriber expired: " + subscriber.host);
+                subscribers.remove(subscriber.host, subscriber);
+                continue;
+            }
+            if(subscriber.pending.isEmpty() || !subscriber.inFlight.compareAndSet(false, true)) {
+                continue;
+            }
+            List<String> names = new ArrayList<>();
+            Iterator<String> iterator = subscriber.pending.iterator();
+            while(iterator.hasNext()) {
+                names.add(iterator.next());
+                iterator.remove();
+            }
+            subscriber.sequence++;
+            send(subscriber, subscriber.sequence, buildBody(epoch, subscriber.sequence, names), names, 1);
+        }
+    }
+
+    private void send(Subscriber subscriber, long sequence, String body, List<String> names, int attempt) {
+        HttpRequest postRequest;
         try {
-            HttpRequest postRequest = HttpRequest.newBuilder()
-                .uri(new URI("http://" + remoteHost + "/invalidate"))
+            postRequest = HttpRequest.newBuilder()
+                .uri(new URI("http://" + subscriber.host + "/invalidate"))
                 .header("Content-Type", "application/json")
-                .POST(BodyPublishers.ofString(String.format("{\"name\":\"%s\"}", productName)))
+                .timeout(Duration.ofSeconds(2))
+                .POST(BodyPublishers.ofString(body))
                 .build();
-            HttpResponse<String> postResponse = client.send(postRequest, BodyHandlers.ofString());
-            System.out.println("Invalidation request for product sent " + productName);
-            if(postResponse.statusCode() != 200) {
-                throw new RuntimeException("Expected response code 200 but got: " + postResponse.statusCode());
+        } catch (Exception e) {
+            System.out.println("Invalid frontend host for invalidation: " + subscriber.host);
+            subscribers.remove(subscriber.host, subscriber);
+            return;
+        }
+
+        client.sendAsync(postRequest, BodyHandlers.discarding()).whenComplete((postResponse, error) -> {
+            if(error == null && postResponse.statusCode() == 200) {
+                System.out.println("Invalidation request for products sent to " + subscriber.host + " " + names);
+                subscriber.completedSequence = sequence;
+                subscriber.inFlight.set(false);
+                return;
             }
-        } catch (IOException | InterruptedException | URISyntaxException e) {
-            throw new RuntimeException(e);
+            String reason = error != null ? error.toString() : "response code " + postResponse.statusCode();
+            if(attempt >= MAX_ATTEMPTS) {
+                // The frontend notices the skipped sequence number with its next batch and clears its cache
+                System.out.println("Giving up invalidation of " + names + " for " + subscriber.host + ": " + reason);
+                subscriber.completedSequence = sequence;
+                subscriber.inFlight.set(false);
+                return;
+            }
+            long backoff = RETRY_BACKOFF_MS << (attempt - 1);
+            System.out.println("Invalidation of " + names + " for " + subscriber.host + " failed (" + reason
+                    + "), retrying in " + backoff + "ms");
+            scheduler.schedule(() -> send(subscriber, sequence, body, names, attempt + 1),
+                    backoff, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    private static String buildBody(long epoch, long sequence, List<String> names) {
+        StringBuilder body = new StringBuilder("{\"epoch\":").append(epoch)
+                .append(",\"seq\":").append(sequence).append(",\"names\":[");
+        for(int i = 0; i < names.size(); i++) {
+            if(i > 0) {
+                body.append(",");
+            }
+            body.append("\"").append(names.get(i)).append("\"");
+        }
+        return body.append("]}").toString();
+    }
+
+    private static class Subscriber {
+        final String host;
+        final Set<String> pending = ConcurrentHashMap.newKeySet();
+        final AtomicBoolean inFlight = new AtomicBoolean(false);
+        // Only changed by the scheduler thread
+        volatile long sequence = 0;
+        volatile long completedSequence = 0;
+        volatile long expiresAt;
+
+        Subscriber(String host, long expiresAt) {
+            this.host = host;
+            this.expiresAt = expiresAt;
         }
     }
 }
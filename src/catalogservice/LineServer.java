@@ -0,0 +1,267 @@
+package catalogservice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking server for the line based socket protocol.
+ *
+ * A single selector thread accepts connections and reads from all of them into pooled ByteBuffers. Every complete
+ * line is handed to the worker pool. Requests of one connection are handled one at a time and in order, so replies
+ * come back in request order, while different connections are handled in parallel. Idle connections do not hold a
+ * worker thread, so a few threads can serve thousands of connections.
+ */
+public class LineServer {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_LINE_LENGTH = 1 << 20;
+
+    /**
+     * Handles one request line. Replies are written with {@link Connection#println(Object)}. A request whose handler
+     * throws is answered with "-1".
+     */
+    public interface RequestHandler {
+        void handle(String line, Connection connection);
+    }
+
+    private final int port;
+    private final ExecutorService workers;
+    private final RequestHandler handler;
+    private final BufferPool bufferPool = new BufferPool(BUFFER_SIZE);
+    private Selector selector;
+
+    public LineServer(int port, ExecutorService workers, RequestHandler handler) {
+        this.port = port;
+        this.workers = workers;
+        this.handler = handler;
+    }
+
+    /**
+     * Runs the selector loop on the calling thread.
+     */
+    public void serve() throws IOException {
+        selector = Selector.open();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.socket().setReuseAddress(true);
+            server.bind(new InetSocketAddress(port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+
+            while (true) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept(server);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            ((Connection) key.attachment()).read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            ((Connection) key.attachment()).flush();
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        // a worker may also have closed the connection, and cancelled its key, in the meantime
+                        if (key.attachment() != null) {
+                            ((Connection) key.attachment()).close();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        // Displaying that new client is connected to server
+        System.out.println("New client connected: " + channel.socket().getInetAddress());
+    }
+
+    /**
+     * A client connection. Requests are queued by the selector thread and drained by at most one worker at a time.
+     */
+    public class Connection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+        private final Queue<String> requests = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private final Queue<ByteBuffer> pendingWrites = new ArrayDeque<>();
+        private volatile boolean inputClosed = false;
+        private boolean closed = false;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Queues a reply line. It is written right away if the socket can take it, otherwise by the selector thread.
+         */
+        public void println(Object line) {
+            write(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+        }
+
+        synchronized void write(ByteBuffer buffer) {
+            if (closed) {
+                return;
+            }
+            try {
+                if (pendingWrites.isEmpty()) {
+                    channel.write(buffer);
+                }
+                if (buffer.hasRemaining()) {
+                    pendingWrites.add(buffer);
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    selector.wakeup();
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        // Called by the selector thread when the socket is writable again
+        synchronized void flush() throws IOException {
+            while (!pendingWrites.isEmpty()) {
+                ByteBuffer buffer = pendingWrites.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return;
+                }
+                pendingWrites.poll();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            closeIfDone();
+        }
+
+        // Called by the selector thread when the socket is readable
+        void read() throws IOException {
+            ByteBuffer buffer = bufferPool.borrow();
+            try {
+                int read = channel.read(buffer);
+                if (read == -1) {
+                    // The client may close its side right after sending, so the queued requests are still handled
+                    inputClosed = true;
+                    synchronized (this) {
+                        if (!closed) {
+                            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                            closeIfDone();
+                        }
+                    }
+                    return;
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (b == '\n') {
+                        String line = partialLine.toString(StandardCharsets.UTF_8);
+                        partialLine.reset();
+                        if (line.endsWith("\r")) {
+                            line = line.substring(0, line.length() - 1);
+                        }
+                        requests.add(line);
+                    } else {
+                        partialLine.write(b);
+                        if (partialLine.size() > MAX_LINE_LENGTH) {
+                            throw new IOException("Request line too long");
+                        }
+                    }
+                }
+            } finally {
+                bufferPool.release(buffer);
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            if (!requests.isEmpty() && scheduled.compareAndSet(false, true)) {
+                workers.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            String line;
+            while ((line = requests.poll()) != null) {
+                try {
+                    handler.handle(line, this);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    // the client waits for one reply per request, a failed request still gets one
+                    println("-1");
+                }
+            }
+            scheduled.set(false);
+            // A request may have arrived after the last poll but before the flag was cleared
+            schedule();
+            synchronized (this) {
+                closeIfDone();
+            }
+        }
+
+        private void closeIfDone() {
+            if (inputClosed && requests.isEmpty() && !scheduled.get() && pendingWrites.isEmpty()) {
+                close();
+            }
+        }
+
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Pool of direct read buffers so reads do not allocate.
+     */
+    static class BufferPool {
+        private final int bufferSize;
+        private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+        BufferPool(int bufferSize) {
+            this.bufferSize = bufferSize;
+        }
+
+        ByteBuffer borrow() {
+            ByteBuffer buffer = buffers.poll();
+            return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize);
+        }
+
+        void release(ByteBuffer buffer) {
+            buffer.clear();
+            buffers.offer(buffer);
+        }
+    }
+}
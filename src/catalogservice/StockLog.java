@@ -0,0 +1,254 @@
+package catalogservice;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of stock changes for the catalog.
+ *
+ * Every stock change is appended as a single line "sequence,product,delta,checksum" instead of rewriting catalog.csv. A
+ * change of several products at once, e.g. a cart, is one line "sequence,product,delta,product,delta,...,checksum", so
+ * it is replayed either completely or not at all. The checksum is the CRC32 of the line up to its last comma, in hex.
+ * Recovery replays the records up to the first one that is not newline terminated or fails its checksum, which can only
+ * be a record torn by a crash and never acknowledged, and truncates the log there before appending to it again. A line
+ * without a checksum counts as torn as well. Appends go through a GroupCommitWriter so concurrent buyers share one
+ * write and one force per batch. A background checkpoint periodically folds the log into catalog.csv. The checkpoint
+ * header line "#checkpoint,<seq>" in catalog.csv records the last sequence number already contained in the csv, so on
+ * startup only the records after it are replayed.
+ *
+ * Checkpointing never looks at the in-memory catalog. The active log is rolled over to stock.log.checkpoint and the
+ * rolled file is replayed on top of catalog.csv, so the csv always matches a prefix of the log exactly.
+ */
+public class StockLog {
+    static final String CHECKPOINT_HEADER = "#checkpoint";
+
+    private final Path databaseFile;
+    private final Path logFile;
+    private final Path rolledLogFile;
+    private final Object sequenceLock = new Object();
+    private final Object checkpointLock = new Object();
+
+    private GroupCommitWriter.FileSink sink;
+    private GroupCommitWriter writer;
+    private long sequence = 0;
+
+    public StockLog(String databaseFile, String logFile) {
+        this.databaseFile = Paths.get(databaseFile);
+        this.logFile = Paths.get(logFile);
+        this.rolledLogFile = Paths.get(logFile + ".checkpoint");
+    }
+
+    /**
+     * Loads catalog.csv and replays every logged delta newer than its checkpoint into the given catalog.
+     * Must be called once before the first append.
+     */
+    public void recover(Map<String, CatalogItem> catalog) {
+        long checkpoint = readCsv(databaseFile.toFile(), catalog);
+        sequence = checkpoint;
+        sequence = Math.max(sequence, replay(rolledLogFile.toFile(), checkpoint, catalog, false));
+        sequence = Math.max(sequence, replay(logFile.toFile(), checkpoint, catalog, true));
+        try {
+            sink = new GroupCommitWriter.FileSink(logFile);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        writer = GroupCommitWriter.fromEnv("CATALOG", sink);
+    }
+
+    /**
+     * Durably appends a stock change for the given product. Returns once the record has been forced to disk, throws
+     * if it could not be written.
+     */
+    public void append(String productName, int delta) throws IOException {
+        append(Map.of(productName, delta));
+    }
+
+    /**
+     * Durably appends the stock changes of several products as one record. Returns once it has been forced to disk,
+     * throws if it could not be written.
+     */
+    public void append(Map<String, Integer> deltas) throws IOException {
+        StringBuilder changes = new StringBuilder();
+        for(Map.Entry<String, Integer> delta : deltas.entrySet()) {
+            changes.append(',').append(delta.getKey()).append(',').append(delta.getValue());
+        }
+        CompletableFuture<Void> written;
+        // Sequence numbers are handed out in queue order so the log is always written in sequence order
+        synchronized (sequenceLock) {
+            sequence++;
+            written = writer.submit(withChecksum(sequence + changes.toString()));
+        }
+        try {
+            written.join();
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Folds all the records logged so far into catalog.csv and discards them from the log.
+     */
+    public void checkpoint() {
+        synchronized (checkpointLock) {
+            File rolled = rolledLogFile.toFile();
+            // A previous checkpoint may have failed half way, in which case the rolled file still has to be folded
+            if(!rolled.exists()) {
+                try {
+                    sink.roll(logFile, rolledLogFile);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
+
+            Map<String, CatalogItem> snapshot = new LinkedHashMap<>();
+            long checkpoint = readCsv(databaseFile.toFile(), snapshot);
+            checkpoint = Math.max(checkpoint, replay(rolled, checkpoint, snapshot, false));
+
+            Path tempFile = Paths.get(databaseFile + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tempFile.toFile());
+                 BufferedWriter csv = new BufferedWriter(new OutputStreamWriter(out))) {
+                csv.write(CHECKPOINT_HEADER + "," + checkpoint + "\n");
+                for(CatalogItem item : snapshot.values()) {
+                    csv.write(item.getName() + ", " + item.getPrice() + ", " + item.getQuantity() + "\n");
+                }
+                csv.flush();
+                out.getFD().sync();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+
+            try {
+                Files.move(tempFile, databaseFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                Files.delete(rolledLogFile);
+                System.out.println("Checkpointed stock log up to sequence " + checkpoint);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Reads catalog.csv into the given map and returns the sequence number of its checkpoint
+    private static long readCsv(File file, Map<String, CatalogItem> catalog) {
+        long checkpoint = 0;
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if(line.isBlank()) {
+                    continue;
+                }
+                String[] parts = line.split(",");
+                if(parts[0].trim().equals(CHECKPOINT_HEADER)) {
+                    checkpoint = Long.parseLong(parts[1].trim());
+                    continue;
+                }
+                String name = parts[0].trim().toLowerCase();
+                double price = Double.parseDouble(parts[1].trim());
+                int quantity = Integer.parseInt(parts[2].trim());
+                catalog.put(name, new CatalogItem(name, price, quantity));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+        return checkpoint;
+    }
+
+    // Applies the records newer than the checkpoint and returns the highest sequence number seen. The replay stops at
+    // the first torn record, with truncateTornTail the file is cut there so new records start on a fresh line
+    private static long replay(File file, long checkpoint, Map<String, CatalogItem> catalog, boolean truncateTornTail) {
+        long lastSequence = checkpoint;
+        if(!file.exists()) {
+            return lastSequence;
+        }
+        byte[] content;
+        try {
+            content = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+        int start = 0;
+        int end;
+        while ((end = indexOfNewline(content, start)) >= 0) {
+            String line = new String(content, start, end - start, StandardCharsets.UTF_8);
+            String[] parts = line.split(",");
+            // a record without its checksum is just as torn as one with a wrong checksum
+            if(parts.length < 4 || parts.length % 2 != 0
+                    || !withChecksum(line.substring(0, line.lastIndexOf(','))).equals(line)) {
+                break;
+            }
+            long recordSequence;
+            int[] deltas = new int[(parts.length - 2) / 2];
+            try {
+                recordSequence = Long.parseLong(parts[0].trim());
+                for(int i = 0; i < deltas.length; i++) {
+                    deltas[i] = Integer.parseInt(parts[2 + 2 * i].trim());
+                }
+            } catch (NumberFormatException e) {
+                break;
+            }
+            start = end + 1;
+            lastSequence = Math.max(lastSequence, recordSequence);
+            if(recordSequence <= checkpoint) {
+                continue;
+            }
+            for(int i = 0; i < deltas.length; i++) {
+                CatalogItem item = catalog.get(parts[1 + 2 * i].trim());
+                if(item != null) {
+                    item.addQuantity(deltas[i]);
+                }
+            }
+        }
+        if(start < content.length) {
+            // A torn record can only be the last one written before a crash, nothing after it was acknowledged
+            System.out.println("Discarding " + (content.length - start) + " bytes of incomplete stock log records in "
+                    + file);
+            if(truncateTornTail) {
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                    channel.truncate(start);
+                    channel.force(true);
+                } catch (IOException e) {
+                    throw new RuntimeException(e.getMessage());
+                }
+            }
+        }
+        return lastSequence;
+    }
+
+    private static int indexOfNewline(byte[] content, int from) {
+        for(int i = from; i < content.length; i++) {
+            if(content[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Appends the CRC32 of the record as its last field
+    private static String withChecksum(String record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        return record + "," + Long.toHexString(crc.getValue());
+    }
+}
@@ -0,0 +1,130 @@
+package client;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load generator used to compare the fixed thread pools with EXECUTION_MODE=virtual.
+ *
+ * Runs the given number of concurrent clients against the frontend for the given number of seconds. Each client
+ * queries a random product and places an order for it with probability p. Start the services once with the default
+ * execution mode and once with EXECUTION_MODE=virtual, run this against both and compare the printed throughput and
+ * latencies. Only successful (2xx) replies count towards the throughput and the latencies. Error replies, e.g. a buy
+ * of a product that is out of stock, and requests that failed without a reply are counted separately. A request that
+ * is not answered within REQUEST_TIMEOUT counts as failed.
+ *
+ * Usage: java client.ClientThroughput [clients] [seconds] [p]
+ */
+public class ClientThroughput {
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+
+    public static void main(String[] args) throws InterruptedException {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        double p = args.length > 2 ? Double.parseDouble(args[2]) : 0.2;
+
+        List<String> products = new ArrayList<>(
+                Arrays.asList("mrpotatohead", "dolphin", "python", "chess", "skateboard", "bicycle", "rollerskates",
+                        "barbie", "frisbee", "fox", "rubikscube", "yo-yo", "dominoes", "lego", "whale", "jumprope",
+                        "tux", "monopoly", "uno", "bingo", "hotwheels", "elephant")
+        );
+        String remoteHost = System.getenv("REMOTE_HOST");
+        HttpClient client = HttpClient.newHttpClient();
+
+        List<Long> getLatencies = Collections.synchronizedList(new ArrayList<>());
+        List<Long> postLatencies = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger getErrors = new AtomicInteger();
+        AtomicInteger postErrors = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+        // Clients run on virtual threads so the load generator itself is not limited by a thread pool
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        for(int i = 0; i < clients; i++) {
+            executor.execute(() -> {
+                Random random = new Random();
+                while(System.nanoTime() < deadline) {
+                    String product = products.get(random.nextInt(products.size()));
+                    try {
+                        long start = System.nanoTime();
+                        HttpRequest getRequest = HttpRequest.newBuilder()
+                                .uri(new URI("http://" + remoteHost + "/products/" + product))
+                                .timeout(REQUEST_TIMEOUT)
+                                .GET()
+                                .build();
+                        HttpResponse<Void> getResponse = client.send(getRequest, BodyHandlers.discarding());
+                        if(isSuccess(getResponse)) {
+                            getLatencies.add(System.nanoTime() - start);
+                        } else {
+                            getErrors.incrementAndGet();
+                        }
+
+                        if(random.nextDouble() <= p) {
+                            start = System.nanoTime();
+                            HttpRequest postRequest = HttpRequest.newBuilder()
+                                    .uri(new URI("http://" + remoteHost + "/order"))
+                                    .timeout(REQUEST_TIMEOUT)
+                                    .header("Content-Type", "application/json")
+                                    .POST(HttpRequest.BodyPublishers.ofString(
+                                            String.format("{\"name\":\"%s\", \"quantity\":1}", product)))
+                                    .build();
+                            HttpResponse<Void> postResponse = client.send(postRequest, BodyHandlers.discarding());
+                            if(isSuccess(postResponse)) {
+                                postLatencies.add(System.nanoTime() - start);
+                            } else {
+                                postErrors.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+
+        System.out.println("Clients: " + clients + ", duration: " + seconds + "s, probability: " + p);
+        System.out.printf("Throughput: %.1f successful requests/s%n",
+                (getLatencies.size() + postLatencies.size()) / (double) seconds);
+        System.out.printf("Error replies: %d GET, %d POST, failed requests: %d%n",
+                getErrors.get(), postErrors.get(), failures.get());
+        printLatencies("GET", getLatencies);
+        printLatencies("POST", postLatencies);
+    }
+
+    private static boolean isSuccess(HttpResponse<Void> response) {
+        return response.statusCode() >= 200 && response.statusCode() < 300;
+    }
+
+    private static void printLatencies(String name, List<Long> latencies) {
+        if(latencies.isEmpty()) {
+            System.out.println(name + ": no requests");
+            return;
+        }
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        double average = 0.0;
+        for(Long latency : sorted) {
+            average += latency;
+        }
+        average = average / sorted.size() / 1e6;
+        double p50 = sorted.get(sorted.size() / 2) / 1e6;
+        double p99 = sorted.get(Math.min(sorted.size() - 1, (int) (sorted.size() * 0.99))) / 1e6;
+        System.out.printf("%s: %d requests, average %.2fms, p50 %.2fms, p99 %.2fms%n",
+                name, sorted.size(), average, p50, p99);
+    }
+}
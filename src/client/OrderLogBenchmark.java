@@ -0,0 +1,95 @@
+package client;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import orderservice.OrderLog;
+
+/**
+ * Measures order queries against order logs of growing size, through the OrderLog index and through the line by line
+ * scan that QUERY used to do. Set ORDER_SEGMENT_BYTES to spread the larger logs over several segments.
+ *
+ * Usage, from src: javac client/OrderLogBenchmark.java
+ *                  java client.OrderLogBenchmark [largest log size, default 1000000]
+ */
+public class OrderLogBenchmark {
+    private static final int INDEXED_QUERIES = 100000;
+    private static final int SCANNED_QUERIES = 20;
+
+    public static void main(String[] args) throws IOException {
+        int largest = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        String[] products = {"tux", "lego", "whale", "fox", "uno", "bingo", "chess", "frisbee"};
+        Random random = new Random(42);
+
+        System.out.println("orders\topen ms\tindexed query us\tscanned query us");
+        for(int orders = 1000; orders <= largest; orders *= 10) {
+            Path directory = Files.createTempDirectory("order_logs");
+            Path file = directory.resolve("order_log.csv");
+            try {
+                try (BufferedWriter writer = new BufferedWriter(new FileWriter(file.toFile()))) {
+                    for(int i = 1; i <= orders; i++) {
+                        writer.write(i + "," + products[i % products.length] + "," + (1 + i % 5));
+                        writer.newLine();
+                    }
+                }
+
+                long start = System.nanoTime();
+                OrderLog log = new OrderLog(directory);
+                // the benchmark file was migrated to the first segment
+                file = directory.resolve(String.format("order_log_%010d.csv", 1));
+                double openMillis = (System.nanoTime() - start) / 1e6;
+
+                // warm up, then time random lookups
+                for(int i = 0; i < INDEXED_QUERIES; i++) {
+                    log.read(1 + random.nextInt(orders));
+                }
+                start = System.nanoTime();
+                for(int i = 0; i < INDEXED_QUERIES; i++) {
+                    if(log.read(1 + random.nextInt(orders)) == null) {
+                        throw new IllegalStateException("missing order");
+                    }
+                }
+                double indexedMicros = (System.nanoTime() - start) / 1e3 / INDEXED_QUERIES;
+
+                start = System.nanoTime();
+                for(int i = 0; i < SCANNED_QUERIES; i++) {
+                    if(scan(file, Integer.toString(1 + random.nextInt(orders))) == null) {
+                        throw new IllegalStateException("missing order");
+                    }
+                }
+                double scannedMicros = (System.nanoTime() - start) / 1e3 / SCANNED_QUERIES;
+
+                System.out.printf("%d\t%.1f\t%.2f\t%.1f%n", orders, openMillis, indexedMicros, scannedMicros);
+            } finally {
+                try (Stream<Path> files = Files.list(directory)) {
+                    for(Path path : (Iterable<Path>) files::iterator) {
+                        Files.delete(path);
+                    }
+                }
+                Files.delete(directory);
+            }
+        }
+        System.exit(0);
+    }
+
+    // The lookup QUERY did before the index
+    private static String scan(Path file, String orderNumber) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file.toFile()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(",");
+                if(parts[0].trim().equals(orderNumber)) {
+                    return line;
+                }
+            }
+            return null;
+        }
+    }
+}
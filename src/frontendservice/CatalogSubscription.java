@@ -0,0 +1,62 @@
+package frontendservice;
+
+import frontendservice.handler.InvalidationHandler;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Subscribes this frontend to cache invalidations from the catalog service and renews the subscription every
+ * RENEW_INTERVAL_MS, so several frontends can run side by side and each of them keeps its cache consistent.
+ *
+ * The address the catalog service uses to reach this frontend's invalidation server is read from INVALIDATION_HOST
+ * and defaults to "<hostname>:8081".
+ */
+public class CatalogSubscription implements Runnable {
+    private static final long RENEW_INTERVAL_MS = 10000;
+
+    private final String catalogHost = System.getenv("CATALOG_HOST");
+    private final String invalidationHost;
+
+    public CatalogSubscription() {
+        String host = System.getenv("INVALIDATION_HOST");
+        if(host == null || host.isBlank()) {
+            try {
+                host = InetAddress.getLocalHost().getHostName() + ":8081";
+            } catch (IOException e) {
+                host = "localhost:8081";
+            }
+        }
+        invalidationHost = host;
+    }
+
+    @Override
+    public void run() {
+        while(true) {
+            subscribe();
+            try {
+                Thread.sleep(RENEW_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private void subscribe() {
+        try (Socket socket = new Socket(catalogHost, 8085)) {
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+            out.println("subscribe:" + invalidationHost);
+            out.flush();
+
+            String[] reply = in.readLine().split(",");
+            InvalidationHandler.onSubscribed(Long.parseLong(reply[0].trim()), Long.parseLong(reply[1].trim()));
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not subscribe to catalog invalidations: " + e.getMessage());
+        }
+    }
+}
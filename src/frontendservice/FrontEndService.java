@@ -4,8 +4,10 @@ import com.sun.net.httpserver.HttpServer;
 import frontendservice.handler.InvalidationHandler;
 import frontendservice.handler.OrderHandler;
 import frontendservice.handler.ProductHandler;
+import frontendservice.handler.ProductListHandler;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 public class FrontEndService {
@@ -13,10 +15,14 @@ public class FrontEndService {
         try {
             HttpServer httpServer = HttpServer.create(new InetSocketAddress(8080), 0);
             HttpServer httpServerInvalidate = HttpServer.create(new InetSocketAddress(8081), 0);
-            httpServer.setExecutor(Executors.newFixedThreadPool(10));
-            httpServerInvalidate.setExecutor(Executors.newFixedThreadPool(10));
+            httpServer.setExecutor(newExecutor(10));
+            httpServerInvalidate.setExecutor(newExecutor(10));
             httpServer.createContext("/products/", new ProductHandler());
-            httpServer.createContext("/order", new OrderHandler());
+            httpServer.createContext("/products", new ProductListHandler());
+            // carts are orders too, they share the handler and its view of the order services
+            OrderHandler orderHandler = new OrderHandler();
+            httpServer.createContext("/order", orderHandler);
+            httpServer.createContext("/cart", orderHandler);
             httpServerInvalidate.createContext("/invalidate", new InvalidationHandler());
 
             httpServer.start();
@@ -25,8 +31,29 @@ public class FrontEndService {
             httpServerInvalidate.start();
             System.out.println("HttpServerInvalidate running on port: 8081");
 
+            // register with the catalog service so invalidations reach every frontend replica
+            Thread subscription = new Thread(new CatalogSubscription());
+            subscription.setDaemon(true);
+            subscription.start();
+            if(useVirtualThreads()) {
+                System.out.println("Handling requests on virtual threads");
+            }
+
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
+
+    // EXECUTION_MODE=virtual runs every request, and the blocking calls it makes to the catalog and order services,
+    // on its own virtual thread instead of the fixed pool
+    private static boolean useVirtualThreads() {
+        return "virtual".equalsIgnoreCase(System.getenv("EXECUTION_MODE"));
+    }
+
+    private static ExecutorService newExecutor(int threads) {
+        if(useVirtualThreads()) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        return Executors.newFixedThreadPool(threads);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,239 @@
+package frontendservice;
+
+import frontendservice.pool.ConnectionPool;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps an in-memory view of the order service nodes listed in nodes.properties: which of them are alive, who they
+ * report as their leader and the last order they have applied.
+ *
+ * Every ORDER_HEALTH_INTERVAL_MS (default 200) all the nodes are asked "WHOISLEADER" and "APPLIED" in parallel, with
+ * CHECK_TIMEOUT_MS to connect and to answer, so a round takes at most that long however many nodes are down. The checks
+ * go over a persistent connection to each node, from a pool of their own, instead of connecting every round. Looking up
+ * the leader is a read of the view. When the leader fails a request, the caller starts an extra round right away,
+ * concurrent callers share it. nodes.properties is watched and reloaded when it changes.
+ */
+public class OrderNodeMonitor {
+    private static final String NODES_FILE = "frontendservice/handler/nodes.properties";
+    private static final int CHECK_TIMEOUT_MS = 500;
+    private static final long RETRY_MS = 50;
+
+    private static OrderNodeMonitor instance;
+
+    private final Path nodesFile = Paths.get(NODES_FILE).toAbsolutePath();
+    private final long intervalMillis;
+    private final ExecutorService checks = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "order-node-check");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "order-node-monitor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // highest priority first
+    private volatile NavigableMap<Integer, Node> nodes = new TreeMap<>(Collections.reverseOrder());
+    private CompletableFuture<Void> round;
+
+    private OrderNodeMonitor() {
+        String interval = System.getenv("ORDER_HEALTH_INTERVAL_MS");
+        intervalMillis = interval == null || interval.isBlank() ? 200 : Long.parseLong(interval.trim());
+        loadNodes();
+        refresh().join();
+        scheduler.scheduleAtFixedRate(() -> refresh().join(), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+
+        Thread watcher = new Thread(this::watchNodesFile, "order-nodes-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    public static synchronized OrderNodeMonitor getInstance() {
+        if(instance == null) {
+            instance = new OrderNodeMonitor();
+        }
+        return instance;
+    }
+
+    /**
+     * The leader the live nodes report, the one of the newest term if they disagree, or null during an election.
+     */
+    public String getLeader() {
+        String leader = null;
+        int leaderTerm = -1;
+        for(Node node : nodes.values()) {
+            if(node.alive && node.leader != null && node.term > leaderTerm && isAlive(node.leader)) {
+                leader = node.leader;
+                leaderTerm = node.term;
+            }
+        }
+        return leader;
+    }
+
+    /**
+     * Checks all the nodes again and returns the leader, waiting up to timeoutMillis for the nodes to elect one.
+     * Returns null if they did not.
+     */
+    public String awaitLeader(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while(true) {
+            refresh().join();
+            String leader = getLeader();
+            if(leader != null || System.currentTimeMillis() >= deadline) {
+                return leader;
+            }
+            try {
+                Thread.sleep(RETRY_MS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * False if the host is a known node that did not answer the last check.
+     */
+    public boolean isAlive(String host) {
+        for(Node node : nodes.values()) {
+            if(node.host.equals(host)) {
+                return node.alive;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The live nodes that have applied the given order number at the last check, highest priority first. The nodes
+     * only move forward, so they have applied at least as much by now.
+     */
+    public List<String> getCaughtUpNodes(int orderNumber) {
+        List<String> caughtUp = new ArrayList<>();
+        for(Node node : nodes.values()) {
+            if(node.alive && node.applied >= orderNumber) {
+                caughtUp.add(node.host);
+            }
+        }
+        return caughtUp;
+    }
+
+    // Starts a round of checks of all the nodes, or returns the one that is running
+    private synchronized CompletableFuture<Void> refresh() {
+        if(round != null && !round.isDone()) {
+            return round;
+        }
+        List<CompletableFuture<Void>> nodeChecks = new ArrayList<>();
+        for(Node node : nodes.values()) {
+            nodeChecks.add(CompletableFuture.runAsync(node::check, checks));
+        }
+        round = CompletableFuture.allOf(nodeChecks.toArray(new CompletableFuture<?>[0]));
+        return round;
+    }
+
+    private void loadNodes() {
+        NavigableMap<Integer, Node> loaded = new TreeMap<>(Collections.reverseOrder());
+        try (BufferedReader reader = Files.newBufferedReader(nodesFile)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if(line.isBlank()) {
+                    continue;
+                }
+                String[] parts = line.trim().split("\\s+");
+                int priority = Integer.parseInt(parts[0]);
+                Node known = nodes.get(priority);
+                // keep what is known about a node that did not change
+                loaded.put(priority, known != null && known.host.equals(parts[1]) ? known : new Node(parts[1]));
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not read " + nodesFile + ": " + e.getMessage());
+            return;
+        }
+        nodes = loaded;
+        System.out.println("Order nodes: " + loaded);
+    }
+
+    private void watchNodesFile() {
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            nodesFile.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            while(true) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                for(WatchEvent<?> event : key.pollEvents()) {
+                    changed |= nodesFile.getFileName().equals(event.context());
+                }
+                key.reset();
+                if(changed) {
+                    loadNodes();
+                    refresh();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            System.out.println("Stopped watching " + nodesFile + ": " + e.getMessage());
+        }
+    }
+
+    private static class Node {
+        final String host;
+        final ConnectionPool pool;
+        volatile boolean alive = false;
+        // the leader the node reports and its term, null while it knows of none
+        volatile String leader;
+        volatile int term;
+        // the last order number in the node's log
+        volatile int applied = -1;
+
+        Node(String host) {
+            this.host = host;
+            this.pool = ConnectionPool.forHost(host, 8086, CHECK_TIMEOUT_MS);
+        }
+
+        void check() {
+            try {
+                // "leader_host,term" or -1
+                String[] parts = pool.request("WHOISLEADER").split(",");
+                if(parts.length == 2) {
+                    term = Integer.parseInt(parts[1].trim());
+                    leader = parts[0].trim();
+                } else {
+                    leader = null;
+                }
+                applied = Integer.parseInt(pool.request("APPLIED").trim());
+                if(!alive) {
+                    System.out.println("Order node is alive: " + host);
+                }
+                alive = true;
+            } catch (IOException | RuntimeException e) {
+                if(alive) {
+                    System.out.println("Order node is not alive: " + host);
+                }
+                alive = false;
+                leader = null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return host;
+        }
+    }
+}
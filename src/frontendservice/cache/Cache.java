@@ -1,28 +1,51 @@
 package frontendservice.cache;
 
-import java.util.Collections;
-import java.util.LinkedHashMap;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
- * This is a singleton class which manages the cache for catalogs. It uses LinkedHashMap to implement LRU cache
- * so the least recently queried product would be replaced with new entry in the cache.
+ * This is a singleton class which manages the cache for catalogs. It maps product names to their pre-serialized
+ * {@link CachedResponse}.
+ *
+ * Entries live in a ConcurrentHashMap, so reads never take a lock. Every lookup is counted in a small frequency sketch
+ * (TinyLFU) and refreshes the entry's access time at most once per millisecond. When the cache is full, a random
+ * sample of entries is compared and the least frequently used one is the eviction victim. The new entry is only
+ * admitted if it was looked up more often than the victim, so a scan of cold products cannot flush the hot ones.
+ *
+ * Every key maps to one of VERSION_STRIPES version counters that is incremented whenever the key is invalidated.
+ * A caller that fetches a value from the catalog reads the version first and stores the reply with
+ * addItemIfCurrent, so a reply that was in flight while an invalidation arrived is never cached.
+ *
+ * Products the catalog service does not have in stock are kept apart in a small {@link NegativeCache} with a short
+ * time to live. Invalidations remove a product from both caches.
+ *
+ * The capacity is read from the CACHE_CAPACITY environment variable and defaults to 15.
  */
 public class Cache {
-    private Map<String, String> cache;
-    int capacity = 15;
+    private static final int SAMPLE_SIZE = 8;
+    private static final int VERSION_STRIPES = 64;
+
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final FrequencySketch sketch;
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+    private final NegativeCache missing = new NegativeCache();
+    int capacity;
 
     private static Cache instance = null;
 
     private Cache() {
-        cache = Collections.synchronizedMap(new LinkedHashMap<String, String>(capacity, 0.75f, true) {
-            @Override
-            protected boolean removeEldestEntry(Entry<String, String> eldest) {
-                return size() > capacity;
-            }
-        });
+        String configuredCapacity = System.getenv("CACHE_CAPACITY");
+        capacity = configuredCapacity == null || configuredCapacity.isBlank()
+                ? 15 : Integer.parseInt(configuredCapacity.trim());
+        sketch = new FrequencySketch(capacity);
     }
 
     public static synchronized Cache getInstance() {
@@ -33,23 +56,236 @@ public class Cache {
     }
 
 
-    public void addItem(String key, String value) {
-        cache.put(key, value);
+    public void addItem(String key, CachedResponse value) {
+        put(key, new Entry(value));
+    }
+
+    /**
+     * Adds the item only if the key was not invalidated since version was read with {@link #version(String)}.
+     */
+    public boolean addItemIfCurrent(String key, CachedResponse value, long version) {
+        if(version(key) != version) {
+            return false;
+        }
+        Entry entry = new Entry(value);
+        put(key, entry);
+        // An invalidation bumps the version before removing, so one that raced with the put is seen here
+        if(version(key) != version) {
+            cache.remove(key, entry);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Remembers for a short time that the catalog service has no stock of the key, unless it was invalidated since
+     * version was read.
+     */
+    public boolean addMissingIfCurrent(String key, long version) {
+        if(version(key) != version) {
+            return false;
+        }
+        long expiresAt = missing.add(key);
+        if(version(key) != version) {
+            missing.remove(key, expiresAt);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the catalog service recently answered that it has no stock of the key.
+     */
+    public boolean isMissing(String key) {
+        return missing.contains(key);
+    }
+
+    /**
+     * Returns the invalidation version of the key, to be passed to
+     * {@link #addItemIfCurrent(String, CachedResponse, long)}.
+     */
+    public long version(String key) {
+        return versions.get(stripe(key));
+    }
+
+    private void put(String key, Entry entry) {
+        Entry existing = cache.get(key);
+        if(existing != null || cache.size() < capacity) {
+            cache.put(key, entry);
+            if(cache.size() > capacity) {
+                evict(null);
+            }
+            return;
+        }
+        evict(key);
+        if(cache.size() < capacity) {
+            cache.put(key, entry);
+        }
     }
 
     public boolean containsItem(String key) {
         return cache.containsKey(key);
     }
 
-    public String getItem(String key) {
-        return cache.get(key);
+    public CachedResponse getItem(String key) {
+        sketch.increment(key);
+        Entry entry = cache.get(key);
+        if(entry == null) {
+            return null;
+        }
+        entry.touch();
+        return entry.value;
     }
 
     public void removeItem(String key) {
+        versions.incrementAndGet(stripe(key));
         cache.remove(key);
+        missing.remove(key);
     }
 
     public void clearCache() {
+        for(int i = 0; i < VERSION_STRIPES; i++) {
+            versions.incrementAndGet(i);
+        }
         cache.clear();
+        missing.clear();
+    }
+
+    private static int stripe(String key) {
+        return FrequencySketch.spread(key.hashCode()) & (VERSION_STRIPES - 1);
+    }
+
+    /**
+     * Makes room for the candidate key. The least frequently used entry of a random sample is removed if the candidate
+     * is used more often. With a null candidate the cache is only shrunk back to its capacity.
+     */
+    private void evict(String candidate) {
+        evictionLock.lock();
+        try {
+            while(cache.size() >= (candidate == null ? capacity + 1 : capacity)) {
+                Map.Entry<String, Entry> victim = sampleVictim();
+                if(victim == null) {
+                    return;
+                }
+                if(candidate != null && sketch.frequency(candidate) <= sketch.frequency(victim.getKey())) {
+                    // Not admitted, the cache keeps its hotter entries
+                    return;
+                }
+                cache.remove(victim.getKey(), victim.getValue());
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private Map.Entry<String, Entry> sampleVictim() {
+        int size = cache.size();
+        int skip = size > SAMPLE_SIZE ? ThreadLocalRandom.current().nextInt(size - SAMPLE_SIZE + 1) : 0;
+        Iterator<Map.Entry<String, Entry>> iterator = cache.entrySet().iterator();
+        for(int i = 0; i < skip && iterator.hasNext(); i++) {
+            iterator.next();
+        }
+
+        Map.Entry<String, Entry> victim = null;
+        int victimFrequency = Integer.MAX_VALUE;
+        for(int i = 0; i < SAMPLE_SIZE && iterator.hasNext(); i++) {
+            Map.Entry<String, Entry> entry = iterator.next();
+            int frequency = sketch.frequency(entry.getKey());
+            if(victim == null || frequency < victimFrequency
+                    || (frequency == victimFrequency && entry.getValue().lastAccess < victim.getValue().lastAccess)) {
+                victim = entry;
+                victimFrequency = frequency;
+            }
+        }
+        return victim;
+    }
+
+    private static class Entry {
+        final CachedResponse value;
+        volatile long lastAccess = System.currentTimeMillis();
+
+        Entry(CachedResponse value) {
+            this.value = value;
+        }
+
+        // Readers only write the access time when it changed, so hot entries are not written on every hit
+        void touch() {
+            long now = System.currentTimeMillis();
+            if(now != lastAccess) {
+                lastAccess = now;
+            }
+        }
+    }
+
+    /**
+     * Count-min sketch estimating how often each key was looked up, with counters saturating at 15. All counters are
+     * halved after 10 counted lookups per counter so the frequencies follow the recent popularity.
+     */
+    static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+
+        private final AtomicIntegerArray counters;
+        private final int mask;
+        private final int resetAfter;
+        private final AtomicLong additions = new AtomicLong();
+        private final ReentrantLock resetLock = new ReentrantLock();
+
+        FrequencySketch(int capacity) {
+            int width = Integer.highestOneBit(Math.max(256, capacity * 4) - 1) << 1;
+            counters = new AtomicIntegerArray(width * DEPTH);
+            mask = width - 1;
+            resetAfter = width * 10;
+        }
+
+        void increment(String key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for(int row = 0; row < DEPTH; row++) {
+                int index = indexOf(hash, row);
+                // Saturated counters are not written, so the hottest keys cost no writes
+                int count = counters.get(index);
+                while(count < MAX_COUNT) {
+                    if(counters.compareAndSet(index, count, count + 1)) {
+                        added = true;
+                        break;
+                    }
+                    count = counters.get(index);
+                }
+            }
+            if(added && additions.incrementAndGet() >= resetAfter && resetLock.tryLock()) {
+                try {
+                    if(additions.get() >= resetAfter) {
+                        for(int i = 0; i < counters.length(); i++) {
+                            counters.set(i, counters.get(i) >>> 1);
+                        }
+                        additions.set(0);
+                    }
+                } finally {
+                    resetLock.unlock();
+                }
+            }
+        }
+
+        int frequency(String key) {
+            int hash = spread(key.hashCode());
+            int frequency = MAX_COUNT;
+            for(int row = 0; row < DEPTH; row++) {
+                frequency = Math.min(frequency, counters.get(indexOf(hash, row)));
+            }
+            return frequency;
+        }
+
+        private int indexOf(int hash, int row) {
+            int rowHash = spread(hash + row * 0x9E3779B9);
+            return row * (mask + 1) + (rowHash & mask);
+        }
+
+        private static int spread(int hash) {
+            hash ^= hash >>> 16;
+            hash *= 0x45d9f3b;
+            hash ^= hash >>> 16;
+            return hash;
+        }
     }
 }
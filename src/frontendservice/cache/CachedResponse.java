@@ -0,0 +1,49 @@
+package frontendservice.cache;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A cached product with its ready to send GET /products/<name> response.
+ *
+ * The JSON body is serialized to UTF-8 once, when the catalog reply is cached, so a cache hit is a single write of
+ * this immutable byte array. The body must never be modified by its users. The strong ETag is derived from the
+ * catalog reply, which together with the product name determines every byte of the body.
+ */
+public class CachedResponse {
+    private final String reply;
+    private final byte[] body;
+    private final String etag;
+
+    private CachedResponse(String reply, byte[] body, String etag) {
+        this.reply = reply;
+        this.body = body;
+        this.etag = etag;
+    }
+
+    /**
+     * Builds the response for a catalog reply of the form "price,quantity".
+     */
+    public static CachedResponse forProduct(String product, String reply) {
+        int separator = reply.indexOf(',');
+        String body = "{\n\t\"data\": {\n\t\t\"name\": \"" + product
+                + "\",\n\t\t\"price\": " + reply.substring(0, separator)
+                + ",\n\t\t\"quantity\": " + reply.substring(separator + 1)
+                + "\n\t}\n}";
+        return new CachedResponse(reply, body.getBytes(StandardCharsets.UTF_8), "\"" + reply.replace(',', '-') + "\"");
+    }
+
+    /**
+     * The catalog reply "price,quantity" the response was built from.
+     */
+    public String getReply() {
+        return reply;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+}
@@ -0,0 +1,86 @@
+package frontendservice.cache;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the products the catalog service answered with -1, unknown or out of stock, for a short time so repeated
+ * queries for them do not all go to the catalog service.
+ *
+ * Entries expire after NEGATIVE_CACHE_TTL_MS (default 1000) and at most NEGATIVE_CACHE_CAPACITY (default 1000) names
+ * are kept, so a client asking for many random names cannot grow the frontend's memory. The negative cache is owned by
+ * {@link Cache}, which removes a name from both caches when it is invalidated, so a restocked product is visible with
+ * the next query.
+ */
+class NegativeCache {
+    private final Map<String, Long> expiries = new ConcurrentHashMap<>();
+    private final int capacity;
+    private final long ttlMillis;
+
+    NegativeCache() {
+        capacity = getSetting("NEGATIVE_CACHE_CAPACITY", 1000);
+        ttlMillis = getSetting("NEGATIVE_CACHE_TTL_MS", 1000);
+    }
+
+    private static int getSetting(String name, int defaultValue) {
+        String value = System.getenv(name);
+        return value == null || value.isBlank() ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Adds the name and returns its expiry time, which identifies this entry for {@link #remove(String, long)}.
+     */
+    long add(String key) {
+        long now = System.currentTimeMillis();
+        if(expiries.size() >= capacity && !expiries.containsKey(key)) {
+            makeRoom(now);
+        }
+        long expiresAt = now + ttlMillis;
+        expiries.put(key, expiresAt);
+        return expiresAt;
+    }
+
+    boolean contains(String key) {
+        Long expiresAt = expiries.get(key);
+        if(expiresAt == null) {
+            return false;
+        }
+        if(expiresAt <= System.currentTimeMillis()) {
+            expiries.remove(key, expiresAt);
+            return false;
+        }
+        return true;
+    }
+
+    void remove(String key) {
+        expiries.remove(key);
+    }
+
+    /**
+     * Removes the entry only if it is still the given one, used to undo an add that raced with an invalidation.
+     */
+    void remove(String key, long expiresAt) {
+        expiries.remove(key, expiresAt);
+    }
+
+    void clear() {
+        expiries.clear();
+    }
+
+    // Drops the expired names, and if that is not enough the oldest of a few
+    private void makeRoom(long now) {
+        expiries.values().removeIf(expiresAt -> expiresAt <= now);
+        Iterator<Map.Entry<String, Long>> iterator = expiries.entrySet().iterator();
+        Map.Entry<String, Long> oldest = null;
+        for(int i = 0; i < 8 && iterator.hasNext(); i++) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if(oldest == null || entry.getValue() < oldest.getValue()) {
+                oldest = entry;
+            }
+        }
+        if(expiries.size() >= capacity && oldest != null) {
+            expiries.remove(oldest.getKey(), oldest.getValue());
+        }
+    }
+}
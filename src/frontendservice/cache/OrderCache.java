@@ -0,0 +1,57 @@
+package frontendservice.cache;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * This is a singleton class which caches the serialized GET /order responses by order number.
+ *
+ * An order never changes once it is logged, so entries are never invalidated. They are added when an order is queried
+ * and when it is bought through this frontend, and the oldest entries are evicted first once there are more than
+ * ORDER_CACHE_CAPACITY (default 10000). Recent orders, which are queried the most right after checkout, stay cached
+ * the longest. Reads never take a lock.
+ */
+public class OrderCache {
+    private final Map<Integer, byte[]> responses = new ConcurrentHashMap<>();
+    // order numbers in the order they were cached, the eldest is evicted first
+    private final Queue<Integer> insertionOrder = new ConcurrentLinkedQueue<>();
+    private final int capacity;
+
+    private static OrderCache instance = null;
+
+    private OrderCache() {
+        String configuredCapacity = System.getenv("ORDER_CACHE_CAPACITY");
+        capacity = configuredCapacity == null || configuredCapacity.isBlank()
+                ? 10000 : Integer.parseInt(configuredCapacity.trim());
+    }
+
+    public static synchronized OrderCache getInstance() {
+        if(instance == null) {
+            instance = new OrderCache();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the response body of the order, or null if it is not cached.
+     */
+    public byte[] getOrder(int orderNumber) {
+        return responses.get(orderNumber);
+    }
+
+    public void addOrder(int orderNumber, byte[] response) {
+        if(responses.putIfAbsent(orderNumber, response) != null) {
+            return;
+        }
+        insertionOrder.add(orderNumber);
+        while(responses.size() > capacity) {
+            Integer eldest = insertionOrder.poll();
+            if(eldest == null) {
+                break;
+            }
+            responses.remove(eldest);
+        }
+    }
+}
@@ -7,6 +7,9 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 
 /**
@@ -14,17 +17,30 @@ import java.io.OutputStream;
  * This handler will handle requests coming to /invalidate endpoint
  *
  * The APIs offered are:
- * 1. POST /invalidate: This method will read the product name from the request body and remove the entry from the cache.
+ * 1. POST /invalidate: This method will read the product names from the request body and remove the entries from the
+ * cache. The body is either a single product {"name":"tux"} or a batch {"epoch":1,"seq":7,"names":["tux","lego"]}.
+ *
+ * Batches carry the catalog service epoch and a per-frontend sequence number. If a sequence number is skipped, or the
+ * catalog subscription reports a batch this frontend never received, the invalidations were lost and the whole cache
+ * is cleared.
  */
 public class InvalidationHandler implements HttpHandler {
 
-    Cache cache = Cache.getInstance();
+    static Cache cache = Cache.getInstance();
+
+    private static long epoch = -1;
+    private static long lastSequence = 0;
 
     @Override
     public void handle(HttpExchange exchange) throws IOException {
         if("POST".equals(exchange.getRequestMethod())) {
-            String productName = getProduct(getRequestBody(exchange));
-            cache.removeItem(productName);
+            String requestBody = getRequestBody(exchange);
+            for(String productName : getProducts(requestBody)) {
+                cache.removeItem(productName);
+            }
+            if(requestBody.contains("\"seq\"")) {
+                onBatch(getNumber(requestBody, "epoch"), getNumber(requestBody, "seq"));
+            }
 
             OutputStream os = exchange.getResponseBody();
             String response = "";
@@ -56,6 +72,60 @@ public class InvalidationHandler implements HttpHandler {
         }
     }
 
+    /**
+     * Called with the reply to every catalog subscription renewal: the catalog epoch and the last batch it sent us.
+     */
+    public static synchronized void onSubscribed(long catalogEpoch, long completedSequence) {
+        if(catalogEpoch != epoch) {
+            if(epoch != -1) {
+                System.out.println("Catalog service restarted, clearing cache");
+                cache.clearCache();
+            }
+            epoch = catalogEpoch;
+            lastSequence = completedSequence;
+        } else if(completedSequence > lastSequence) {
+            System.out.println("Missed invalidations up to " + completedSequence + ", clearing cache");
+            cache.clearCache();
+            lastSequence = completedSequence;
+        }
+    }
+
+    private static synchronized void onBatch(long catalogEpoch, long sequence) {
+        if(catalogEpoch != epoch) {
+            cache.clearCache();
+            epoch = catalogEpoch;
+        } else if(sequence > lastSequence + 1) {
+            System.out.println("Invalidation gap between " + lastSequence + " and " + sequence + ", clearing cache");
+            cache.clearCache();
+        }
+        lastSequence = Math.max(lastSequence, sequence);
+    }
+
+    private long getNumber(String requestBody, String field) {
+        int startIndex = requestBody.indexOf("\"" + field + "\"");
+        int valueStart = requestBody.indexOf(":", startIndex) + 1;
+        int valueEnd = valueStart;
+        while(valueEnd < requestBody.length() && Character.isDigit(requestBody.charAt(valueEnd))) {
+            valueEnd++;
+        }
+        return Long.parseLong(requestBody.substring(valueStart, valueEnd));
+    }
+
+    private List<String> getProducts(String requestBody) {
+        if(!requestBody.contains("\"names\"")) {
+            return Collections.singletonList(getProduct(requestBody));
+        }
+        int startIndex = requestBody.indexOf("[", requestBody.indexOf("\"names\""));
+        String names = requestBody.substring(startIndex + 1, requestBody.indexOf("]", startIndex));
+        List<String> products = new ArrayList<>();
+        for(String name : names.split(",")) {
+            if(name.length() > 2) {
+                products.add(name.substring(1, name.length() - 1));
+            }
+        }
+        return products;
+    }
+
     private String getProduct(String requestBody) {
         int startIndex = requestBody.indexOf("name");
         return requestBody.substring(requestBody.indexOf(":", startIndex) + 2, requestBody.indexOf("}", startIndex) - 1);
@@ -2,29 +2,22 @@ package frontendservice.handler;
 
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
+import frontendservice.OrderNodeMonitor;
+import frontendservice.cache.OrderCache;
+import frontendservice.pool.ConnectionPool;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.SocketAddress;
-import java.net.SocketException;
-import java.util.AbstractMap;
-import java.util.AbstractMap.SimpleEntry;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Any requests that come to /order will be handled in this handler.
  *
- * The OrderHandler handles 2 kind of requests:
+ * The OrderHandler handles 3 kind of requests:
  *
  * 1. GET /order/<order_number>: This will return the order details for the given order number.
  * It will either return a 404 response if the order is not available in the logs.
@@ -34,14 +27,63 @@ import java.util.Map.Entry;
  * number if the request is successful.
  * It will either return a 404 response if the product is not available or out of service or
  * It will return a 200 response if order was successful.
+ * It will return a 202 response with "confirmed": false if the order was taken but not acknowledged by as many order
+ * service replicas as their REPLICATION_MODE asks for in time.
+ * It will return a 503 response if no leader could be reached, nothing was bought then. A buy is only sent again when
+ * it was not sent or the node answered that it is not the leader. If the leader does not answer a buy it was sent,
+ * the buy may have been placed and the response is a 502.
  *
+ * 3. POST /cart: Buys several products as one order, with a JSON body
+ * {"items": [{"name": "tux", "quantity": 1}, {"name": "fox", "quantity": 2}]}. The whole cart goes to OrderService in
+ * one request and gets one order number. All the products are bought or none of them, the responses are the same as
+ * for POST /order. A cart order is queried like any other, with an items array instead of name and quantity.
+ *
+ * The order services elect their leader among themselves. The handler takes the leader from the OrderNodeMonitor's
+ * view of the order services, and has them checked again when the leader cannot be reached or answers that it is not
+ * the leader any more.
+ *
+ * With ORDER_READ_ROUTING=replicas the order queries are spread over all the live order services that have applied at
+ * least the newest order this frontend handed out, so a client always finds the order it just bought. An order a
+ * replica does not have yet, e.g. one bought through another frontend, is queried from the leader. The default,
+ * ORDER_READ_ROUTING=leader, sends every query to the leader.
+ *
+ * Order query responses are kept in the {@link OrderCache}, filled by queries and by successful buys.
  */
 public class OrderHandler implements HttpHandler {
 
-    String orderHost = null;
+    // The error bodies never change, so they are encoded once
+    private static final byte[] QUERY_ERROR_RESPONSE =
+            "{\n\t\"error\": {\n\t\t\"code\": 404,\n\t\t\"message\": \"order not found\"\n\t}\n}"
+                    .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ERROR_RESPONSE =
+            "{\n\t\"error\": {\n\t\t\"code\": 404,\n\t\t\"message\": \"product not found or out of stock\"\n\t}\n}"
+                    .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] UNAVAILABLE_RESPONSE =
+            "{\n\t\"error\": {\n\t\t\"code\": 503,\n\t\t\"message\": \"no order service available\"\n\t}\n}"
+                    .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] UNKNOWN_OUTCOME_RESPONSE =
+            ("{\n\t\"error\": {\n\t\t\"code\": 502,\n\t\t\"message\": \"the order service did not answer, "
+                    + "the order may have been placed\"\n\t}\n}").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] EMPTY_CART_RESPONSE =
+            "{\n\t\"error\": {\n\t\t\"code\": 404,\n\t\t\"message\": \"no items given\"\n\t}\n}"
+                    .getBytes(StandardCharsets.UTF_8);
+
+    // how long to wait for the order services to elect a leader
+    private static final long ELECTION_WAIT_MS = 3000;
+    // how many leaders a buy is offered to when it cannot be sent or the node is not the leader any more
+    private static final int MAX_BUY_ATTEMPTS = 3;
+
+    private static final boolean READ_FROM_REPLICAS = "replicas".equalsIgnoreCase(System.getenv("ORDER_READ_ROUTING"));
+
+    private final OrderNodeMonitor monitor = OrderNodeMonitor.getInstance();
+    private final OrderCache orderCache = OrderCache.getInstance();
+    volatile String orderHost = null;
+    // the newest order number this frontend handed out, replicas behind it are not queried
+    private final AtomicInteger lastOrderNumber = new AtomicInteger(0);
+    private final AtomicInteger nextReplica = new AtomicInteger(0);
 
     public OrderHandler() {
-        System.out.println("Electing Leader:");
+        System.out.println("Looking up the Leader:");
         orderHost = getOrderHost();
         if(orderHost == null) {
             throw new RuntimeException("No Order hosts available");
@@ -50,7 +92,9 @@ public class OrderHandler implements HttpHandler {
 
     @Override
     public void handle(HttpExchange exchange) throws IOException {
-        if("POST".equals(exchange.getRequestMethod())) {
+        if("POST".equals(exchange.getRequestMethod()) && exchange.getRequestURI().getPath().startsWith("/cart")) {
+            handleCartRequest(exchange);
+        } else if("POST".equals(exchange.getRequestMethod())) {
             handlePostRequest(exchange);
         } else if("GET".equals(exchange.getRequestMethod())) {
             handleGetRequest(exchange);
@@ -60,41 +104,41 @@ public class OrderHandler implements HttpHandler {
     }
 
     private void handleGetRequest(HttpExchange exchange) {
-        try (Socket socket = new Socket()) {
-            SocketAddress socketAddress = new InetSocketAddress(orderHost, 8086);
-            socket.connect(socketAddress, 1000);
-            // writing to server
-
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-
-            // reading from server
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
+        try {
             String path = exchange.getRequestURI().getPath();
             String order = path.substring(path.lastIndexOf('/') + 1);
             System.out.println("Querying order: " + order);
 
-            out.println("QUERY," + order);
-            out.flush();
+            // orders never change, a cached one is answered without asking the order services
+            int orderNumber = parseOrderNumber(order);
+            byte[] cached = orderNumber > 0 ? orderCache.getOrder(orderNumber) : null;
+            if(cached != null) {
+                exchange.sendResponseHeaders(200, cached.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(cached);
+                os.close();
+                return;
+            }
 
-            // displaying server reply
-            String reply = in.readLine();
+            String reply = queryOrder(order);
             System.out.println("Server replied: " + reply);
             OutputStream os = exchange.getResponseBody();
 
             if (reply.equals("-1")) {
-                String response = buildQueryErrorResponse();
-                exchange.sendResponseHeaders(404, response.length());
-                os.write(response.getBytes());
+                exchange.sendResponseHeaders(404, QUERY_ERROR_RESPONSE.length);
+                os.write(QUERY_ERROR_RESPONSE);
             } else {
-                String response = buildQuerySuccessResponse(reply);
-                exchange.sendResponseHeaders(200, response.length());
-                os.write(response.getBytes());
+                byte[] response = buildQuerySuccessResponse(reply).getBytes(StandardCharsets.UTF_8);
+                if(orderNumber > 0) {
+                    orderCache.addOrder(orderNumber, response);
+                }
+                exchange.sendResponseHeaders(200, response.length);
+                os.write(response);
             }
             os.close();
         } catch (IOException e) {
-            System.out.println("LEADER IS DEAD!!!. Starting re-election");
-            orderHost = getOrderHost();
+            System.out.println("LEADER IS DEAD!!!. Looking up the new leader");
+            orderHost = getNewOrderHost();
             if(orderHost == null) {
                 throw new RuntimeException("No Order hosts available");
             }
@@ -102,55 +146,165 @@ public class OrderHandler implements HttpHandler {
         }
     }
 
-    private void handlePostRequest(HttpExchange exchange) {
-        try (Socket socket = new Socket()) {
-            SocketAddress socketAddress = new InetSocketAddress(orderHost, 8086);
-            socket.connect(socketAddress, 1000);
-            // writing to server
+    // Sends the query over a pooled connection to a caught up replica or to the leader. A replica that cannot be
+    // reached or does not have the order yet is skipped for the leader, only a failure of the leader throws.
+    private String queryOrder(String order) throws IOException {
+        String leader = orderHost;
+        String host = getQueryHost(leader);
+        if(!host.equals(leader)) {
+            try {
+                String reply = ConnectionPool.forHost(host, 8086).request("QUERY," + order);
+                if(!reply.equals("-1")) {
+                    return reply;
+                }
+            } catch (IOException e) {
+                System.out.println("Replica " + host + " failed, querying the leader: " + e.getMessage());
+            }
+        }
+        return ConnectionPool.forHost(leader, 8086).request("QUERY," + order);
+    }
 
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+    // Round robin over the live replicas that applied the newest order this frontend handed out
+    private String getQueryHost(String leader) {
+        if(!READ_FROM_REPLICAS) {
+            return leader;
+        }
+        List<String> replicas = monitor.getCaughtUpNodes(lastOrderNumber.get());
+        if(replicas.isEmpty()) {
+            return leader;
+        }
+        return replicas.get(Math.floorMod(nextReplica.getAndIncrement(), replicas.size()));
+    }
 
-            // reading from server
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            String requestBody = getRequestBody(exchange);
-            System.out.println(requestBody);
+    private void handlePostRequest(HttpExchange exchange) throws IOException {
+        String requestBody = getRequestBody(exchange);
+        System.out.println(requestBody);
+
+        String product = getProduct(requestBody);
+        int quantity = getQuantity(requestBody);
+        System.out.println(product);
+        System.out.println(quantity);
+        if(!ProductHandler.isProductName(product)) {
+            sendProductError(exchange);
+            return;
+        }
 
-            String product = getProduct(requestBody);
-            int quantity = getQuantity(requestBody);
-            System.out.println(product);
-            System.out.println(quantity);
+        handlePostRequest(exchange, product + "," + quantity);
+    }
 
-            out.println("BUY," + product + "," + quantity);
-            // sending the user input to server
-            out.flush();
+    private void handleCartRequest(HttpExchange exchange) throws IOException {
+        String requestBody = getRequestBody(exchange);
+        System.out.println(requestBody);
 
-            // displaying server reply
-            String reply = in.readLine();
-            System.out.println("Server replied: " + reply);
+        List<String> items = getCartItems(requestBody);
+        if(items.isEmpty()) {
+            exchange.sendResponseHeaders(404, EMPTY_CART_RESPONSE.length);
             OutputStream os = exchange.getResponseBody();
-
-            String response;
-            if (reply.equals("-1")) {
-                response = buildErrorResponse();
-                exchange.sendResponseHeaders(404, response.length());
-            } else {
-                response = buildSuccessResponse(reply);
-                exchange.sendResponseHeaders(200, response.length());
-            }
-            os.write(response.getBytes());
+            os.write(EMPTY_CART_RESPONSE);
             os.close();
+            return;
+        }
+        System.out.println(items);
+        for(String item : items) {
+            if(!ProductHandler.isProductName(item.substring(0, item.lastIndexOf(',')))) {
+                sendProductError(exchange);
+                return;
+            }
+        }
 
-        } catch (IOException e) {
-            System.out.println("LEADER IS DEAD!!!. Starting re-election");
-            orderHost = getOrderHost();
+        handlePostRequest(exchange, String.join(",", items));
+    }
+
+    private void sendProductError(HttpExchange exchange) throws IOException {
+        exchange.sendResponseHeaders(404, ERROR_RESPONSE.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(ERROR_RESPONSE);
+        os.close();
+    }
+
+    // Sends "product,quantity[,product,quantity...]" as one buy request, a cart is one order
+    private void handlePostRequest(HttpExchange exchange, String items) throws IOException {
+        String reply = null;
+        boolean maybeBought = false;
+        // only a buy that never reached a leader is sent again, one that was sent may have been bought
+        for(int attempt = 1; reply == null && !maybeBought && attempt <= MAX_BUY_ATTEMPTS; attempt++) {
             if(orderHost == null) {
-                throw new RuntimeException("No Order hosts available");
+                orderHost = getNewOrderHost();
             }
-            handlePostRequest(exchange);
+            String leader = orderHost;
+            if(leader == null) {
+                break;
+            }
+            try {
+                // sending the buy request over a pooled connection to the leader
+                reply = ConnectionPool.forHost(leader, 8086).request("BUY," + items);
+                System.out.println("Server replied: " + reply);
+                if(reply.equals("NOTLEADER")) {
+                    // the order services elected a new leader, nothing was bought
+                    reply = null;
+                }
+            } catch (ConnectionPool.NotSentException e) {
+                System.out.println("Could not send the buy to " + leader + ": " + e.getMessage());
+            } catch (IOException e) {
+                System.out.println("No reply to the buy from " + leader + ": " + e.getMessage());
+                maybeBought = true;
+            }
+            if(reply == null && !maybeBought) {
+                System.out.println("LEADER IS DEAD!!!. Looking up the new leader");
+                orderHost = getNewOrderHost();
+            }
+        }
+
+        byte[] response;
+        int status;
+        if(reply == null) {
+            response = maybeBought ? UNKNOWN_OUTCOME_RESPONSE : UNAVAILABLE_RESPONSE;
+            status = maybeBought ? 502 : 503;
+        } else if(reply.equals("-1")) {
+            response = ERROR_RESPONSE;
+            status = 404;
+        } else {
+            // logged by the leader, but on fewer replicas than its REPLICATION_MODE asks for
+            boolean unconfirmed = reply.startsWith("UNCONFIRMED,");
+            if(unconfirmed) {
+                reply = reply.substring("UNCONFIRMED,".length());
+            }
+            int orderNumber = Integer.parseInt(reply.trim());
+            lastOrderNumber.accumulateAndGet(orderNumber, Math::max);
+            // the order is logged as it was sent, so its query response is already known
+            orderCache.addOrder(orderNumber, buildQuerySuccessResponse(orderNumber + "," + items)
+                    .getBytes(StandardCharsets.UTF_8));
+            response = buildSuccessResponse(reply, unconfirmed).getBytes(StandardCharsets.UTF_8);
+            status = unconfirmed ? 202 : 200;
+        }
+        exchange.sendResponseHeaders(status, response.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(response);
+        os.close();
+    }
+
+    // The order number of the path, -1 if it is not one
+    private int parseOrderNumber(String order) {
+        try {
+            return Integer.parseInt(order.trim());
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
 
     private String buildQuerySuccessResponse(String reply) {
+        String[] parts = reply.split(",");
+        if(parts.length > 3) {
+            // a cart order, "order_number,product_name,quantity,product_name,quantity,..."
+            StringBuilder items = new StringBuilder();
+            for(int i = 1; i + 1 < parts.length; i += 2) {
+                items.append(items.length() > 0 ? ",\n" : "\n").append(String.format(
+                        "\t\t\t{\n\t\t\t\t\"name\": \"%s\",\n\t\t\t\t\"quantity\": %s\n\t\t\t}", parts[i],
+                        parts[i + 1]));
+            }
+            return String.format("{\n\t\"data\": {\n\t\t\"number\": \"%s\",\n\t\t\"items\": [%s\n\t\t]\n\t}\n}",
+                    parts[0], items);
+        }
         String orderNumber = reply.split(",")[0];
         String product = reply.split(",")[1];
         String quantity = reply.split(",")[2];
@@ -159,18 +313,26 @@ public class OrderHandler implements HttpHandler {
                 orderNumber, product, quantity);
     }
 
-    private String buildQueryErrorResponse() {
-        return "{\n\t\"error\": {\n\t\t\"code\": 404,\n\t\t\"message\": \"order not found\"\n\t}\n}";
-    }
-
-    private String buildSuccessResponse(String reply) {
+    private String buildSuccessResponse(String reply, boolean unconfirmed) {
         String orderNumber = reply;
 
+        if(unconfirmed) {
+            return String.format("{\n\t\"data\": {\n\t\t\"order_number\": \"%s\",\n\t\t\"confirmed\": false\n\t}\n}",
+                    orderNumber);
+        }
         return String.format("{\n\t\"data\": {\n\t\t\"order_number\": \"%s\"\n\t}\n}", orderNumber);
     }
 
-    private String buildErrorResponse() {
-        return "{\n\t\"error\": {\n\t\t\"code\": 404,\n\t\t\"message\": \"product not found or out of stock\"\n\t}\n}";
+    // Reads the {"name": ..., "quantity": ...} objects of the items array as "name,quantity" pairs
+    private List<String> getCartItems(String requestBody) {
+        List<String> items = new ArrayList<>();
+        int startIndex = requestBody.indexOf("\"name\"");
+        while(startIndex >= 0) {
+            String item = requestBody.substring(startIndex, requestBody.indexOf("}", startIndex) + 1);
+            items.add(getProduct(item) + "," + getQuantity(item));
+            startIndex = requestBody.indexOf("\"name\"", startIndex + 1);
+        }
+        return items;
     }
 
     private String getProduct(String requestBody) {
@@ -203,71 +365,20 @@ public class OrderHandler implements HttpHandler {
         }
     }
 
+    // The leader from the health monitor's view of the order services. Waits while they are electing one.
     private String getOrderHost() {
-        List<Entry<Integer, String>> nodes = new ArrayList<>();
-
-        try (BufferedReader reader = new BufferedReader(new FileReader("frontendservice/handler/nodes.properties"))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split("\\s+");
-                Entry<Integer, String> entry = new SimpleEntry<>(Integer.parseInt(parts[0]), parts[1]);
-                nodes.add(entry);
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        Collections.sort(nodes, (n1, n2) -> n2.getKey() - n1.getKey());
-
-        for(Entry<Integer, String> entry : nodes) {
-            if(isHealthy(entry.getValue())) {
-                System.out.println("Selected node with address: " + entry.getValue());
-                notifyLeader(entry.getValue());
-                return entry.getValue();
-            } else {
-                System.out.println("Node is not alive: " + entry.getValue());
-            }
-        }
-        return null;
-    }
-
-    private boolean isHealthy(String orderHost) {
-        if(orderHost == null) {
-            return false;
-        }
-        try (Socket socket = new Socket()) {
-            SocketAddress socketAddress = new InetSocketAddress(orderHost, 8086);
-            socket.connect(socketAddress, 2000);
-
-            // writing to server
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-
-            // reading from server
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            out.println("PING");
-            out.flush();
-
-            // displaying server reply
-            String reply = in.readLine();
-
-            return reply.equals("ALIVE");
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
+        String leader = monitor.getLeader();
+        if(leader == null) {
+            leader = monitor.awaitLeader(ELECTION_WAIT_MS);
         }
+        System.out.println("Leader is node with address: " + leader);
+        return leader;
     }
 
-    private void notifyLeader(String orderHost) {
-        try (Socket socket = new Socket(orderHost, 8086)) {
-            // writing to server
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            // reading from server
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            out.println("LEADER");
-            out.flush();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+    // Called when the leader failed a request: checks the order services again instead of trusting the view
+    private String getNewOrderHost() {
+        String leader = monitor.awaitLeader(ELECTION_WAIT_MS);
+        System.out.println("Leader is node with address: " + leader);
+        return leader;
     }
 }
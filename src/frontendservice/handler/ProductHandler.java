@@ -3,22 +3,42 @@ package frontendservice.handler;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import frontendservice.cache.Cache;
-import java.io.BufferedReader;
+import frontendservice.cache.CachedResponse;
+import frontendservice.pool.ConnectionPool;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Pattern;
 
 /**
  * Any requests that come to /products will be handled in this handler.
  *
  * The incoming query requests will be forwarded to Catalog Service and the response will be sent back as JSON back to
- * the client
+ * the client. Concurrent cache misses for the same product are coalesced into a single catalog query. Unknown and out
+ * of stock products are remembered in the negative cache for a short time. A product name with characters other than
+ * letters, digits, spaces, '_' and '-' is answered with 404 without asking the catalog, as the name is sent as part of
+ * a request line.
+ *
+ * The cache holds the serialized response, so a cache hit writes a shared byte array without any formatting. The
+ * response carries a strong ETag and a matching If-None-Match request header is answered with 304 Not Modified.
  */
 public class ProductHandler implements HttpHandler {
 
+    private static final byte[] ERROR_RESPONSE =
+            "{\n\t\"error\": {\n\t\t\"code\": 404,\n\t\t\"message\": \"product not found\"\n\t}\n}"
+                    .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] UNAVAILABLE_RESPONSE =
+            "{\n\t\"error\": {\n\t\t\"code\": 503,\n\t\t\"message\": \"catalog service unavailable\"\n\t}\n}"
+                    .getBytes(StandardCharsets.UTF_8);
+    private static final Pattern PRODUCT_NAME = Pattern.compile("[A-Za-z0-9 _-]+");
+
     Cache cache = Cache.getInstance();
+    ConnectionPool catalogPool = ConnectionPool.forHost(System.getenv("CATALOG_HOST"), 8085);
+    private final Map<String, Fetch> inFlight = new ConcurrentHashMap<>();
 
     @Override
     public void handle(HttpExchange exchange) throws IOException {
@@ -26,68 +46,136 @@ public class ProductHandler implements HttpHandler {
             String path = exchange.getRequestURI().getPath();
             String product = path.substring(path.lastIndexOf('/') + 1).toLowerCase();
             System.out.println("Querying product: " + product);
+            if(!isProductName(product)) {
+                sendError(exchange);
+                return;
+            }
 
-
-
-            if(cache.containsItem(product)) {
+            CachedResponse cached = cache.getItem(product);
+            if(cached != null) {
                 System.out.println("Found item in cache: " + product);
-                String response = buildSuccessResponse(product, cache.getItem(product));
-                exchange.sendResponseHeaders(200, response.length());
-
-                OutputStream os = exchange.getResponseBody();
-                os.write(response.getBytes());
-                os.close();
+                sendProduct(exchange, cached);
+                return;
+            }
+            if(cache.isMissing(product)) {
+                // the catalog service recently had no stock of it
+                sendError(exchange);
                 return;
             }
 
-            String catalogHost = System.getenv("CATALOG_HOST");
-
-            try (Socket socket = new Socket(catalogHost, 8085)) {
-                // writing to server
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-
-                // reading from server
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-                // sending the user input to server
-                out.println("query:" + product);
-                out.flush();
-
-                // displaying server reply
-                String reply = in.readLine();
-                System.out.println("Server replied: " + reply);
-                OutputStream os = exchange.getResponseBody();
-
-                if (reply.equals("-1")) {
-                    String response = buildErrorResponse();
-                    exchange.sendResponseHeaders(404, response.length());
-                    os.write(response.getBytes());
+            try {
+                // concurrent misses for the same product share one query to the catalog service
+                CachedResponse response = fetch(product);
+                if (response == null) {
+                    sendError(exchange);
                 } else {
-                    String response = buildSuccessResponse(product, reply);
-                    exchange.sendResponseHeaders(200, response.length());
-                    os.write(response.getBytes());
-
-                    cache.addItem(product, reply);
+                    sendProduct(exchange, response);
                 }
-                os.close();
-
             } catch (IOException e) {
+                // the catalog service could not be asked, the client still gets an answer instead of waiting forever
                 e.printStackTrace();
+                exchange.sendResponseHeaders(503, UNAVAILABLE_RESPONSE.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(UNAVAILABLE_RESPONSE);
+                os.close();
             }
         } else {
             exchange.sendResponseHeaders(404, 0);
         }
     }
 
-    private String buildSuccessResponse(String product, String reply) {
-        String price = reply.split(",")[0];
-        String quantity = reply.split(",")[1];
+    /**
+     * Whether the name can be a product name. Other names could add fields or requests to the line sent for them.
+     */
+    static boolean isProductName(String name) {
+        return PRODUCT_NAME.matcher(name).matches();
+    }
 
-        return String.format("{\n\t\"data\": {\n\t\t\"name\": \"%s\",\n\t\t\"price\": %s,\n\t\t\"quantity\": %s\n\t}\n}",
-                product, price, quantity);
+    // Writes the pre-serialized body, or an empty 304 if the client already has this version
+    private void sendProduct(HttpExchange exchange, CachedResponse response) throws IOException {
+        exchange.getResponseHeaders().set("ETag", response.getEtag());
+        if(response.getEtag().equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(200, response.getBody().length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(response.getBody());
+        os.close();
     }
 
-    private String buildErrorResponse() {
-        return "{\n\t\"error\": {\n\t\t\"code\": 404,\n\t\t\"message\": \"product not found\"\n\t}\n}";
+    private void sendError(HttpExchange exchange) throws IOException {
+        exchange.sendResponseHeaders(404, ERROR_RESPONSE.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(ERROR_RESPONSE);
+        os.close();
     }
+
+    /**
+     * Queries the catalog for a product that missed the cache. Only the first of several concurrent misses sends the
+     * query, the others wait for its reply. A fetch that started before the product was invalidated is not joined by
+     * later misses, and its reply is only cached if no invalidation arrived in the meantime. Returns null if the
+     * product is unknown or out of stock.
+     */
+    private CachedResponse fetch(String product) throws IOException {
+        long version = cache.version(product);
+        Fetch fetch = new Fetch(version);
+        while(true) {
+            Fetch existing = inFlight.putIfAbsent(product, fetch);
+            if(existing == null) {
+                break;
+            }
+            if(existing.version == version) {
+                return existing.await();
+            }
+            // The running fetch may return the state from before the invalidation, start a new one instead
+            if(inFlight.replace(product, existing, fetch)) {
+                break;
+            }
+        }
+
+        try {
+            // sending the query over a pooled connection to the catalog service
+            String reply = catalogPool.request("query:" + product);
+            System.out.println("Server replied: " + reply);
+            CachedResponse response = null;
+            if(!reply.equals("-1")) {
+                response = CachedResponse.forProduct(product, reply);
+                cache.addItemIfCurrent(product, response, version);
+            } else {
+                cache.addMissingIfCurrent(product, version);
+            }
+            fetch.reply.complete(response);
+            return response;
+        } catch (IOException | RuntimeException e) {
+            fetch.reply.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(product, fetch);
+        }
+    }
+
+    private static class Fetch {
+        final long version;
+        final CompletableFuture<CachedResponse> reply = new CompletableFuture<>();
+
+        Fetch(long version) {
+            this.version = version;
+        }
+
+        CachedResponse await() throws IOException {
+            try {
+                return reply.get();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if(e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
 }
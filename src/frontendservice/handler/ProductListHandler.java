@@ -0,0 +1,163 @@
+package frontendservice.handler;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import frontendservice.cache.Cache;
+import frontendservice.cache.CachedResponse;
+import frontendservice.pool.ConnectionPool;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Any requests that come to /products?names=<name1>,<name2>,... will be handled in this handler.
+ *
+ * Products found in the cache, or recently reported missing, are answered from the cache, all the others are queried
+ * from the Catalog Service with a single mquery request, so a listing of N products costs at most one connection and
+ * one round trip. The response has a top-level data array with the found products and a not_found array with the
+ * names of the unknown or out of stock products. A listing with a name that cannot be a product name is answered with
+ * 404, and a catalog reply that does not have one answer per queried product with 502.
+ */
+public class ProductListHandler implements HttpHandler {
+
+    private static final byte[] ERROR_RESPONSE =
+            "{\n\t\"error\": {\n\t\t\"code\": 404,\n\t\t\"message\": \"no product names given\"\n\t}\n}"
+                    .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] INVALID_NAME_RESPONSE =
+            "{\n\t\"error\": {\n\t\t\"code\": 404,\n\t\t\"message\": \"invalid product name\"\n\t}\n}"
+                    .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] BAD_REPLY_RESPONSE =
+            "{\n\t\"error\": {\n\t\t\"code\": 502,\n\t\t\"message\": \"unexpected catalog reply\"\n\t}\n}"
+                    .getBytes(StandardCharsets.UTF_8);
+
+    Cache cache = Cache.getInstance();
+    ConnectionPool catalogPool = ConnectionPool.forHost(System.getenv("CATALOG_HOST"), 8085);
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        List<String> products = getProducts(exchange.getRequestURI().getRawQuery());
+        if(!"GET".equals(exchange.getRequestMethod()) || products.isEmpty()) {
+            sendError(exchange, 404, ERROR_RESPONSE);
+            return;
+        }
+        System.out.println("Querying products: " + products);
+        for(String product : products) {
+            // the names are sent in one request line, they must not add products, fields or requests to it
+            if(!ProductHandler.isProductName(product)) {
+                sendError(exchange, 404, INVALID_NAME_RESPONSE);
+                return;
+            }
+        }
+
+        Map<String, String> replies = new LinkedHashMap<>();
+        List<String> misses = new ArrayList<>();
+        List<Long> versions = new ArrayList<>();
+        for(String product : products) {
+            CachedResponse cached = cache.getItem(product);
+            if(cached != null) {
+                replies.put(product, cached.getReply());
+            } else if(cache.isMissing(product)) {
+                replies.put(product, null);
+            } else {
+                replies.put(product, null);
+                misses.add(product);
+                versions.add(cache.version(product));
+            }
+        }
+
+        if(!misses.isEmpty()) {
+            try {
+                // sending all the missing products in one request over a pooled connection
+                String[] reply = catalogPool.request("mquery:" + String.join(",", misses)).split(";");
+                System.out.println("Server replied: " + String.join(";", reply));
+                if(!isReplyFor(misses, reply)) {
+                    sendError(exchange, 502, BAD_REPLY_RESPONSE);
+                    return;
+                }
+                for(int i = 0; i < misses.size(); i++) {
+                    if(!reply[i].equals("-1")) {
+                        replies.put(misses.get(i), reply[i]);
+                        cache.addItemIfCurrent(misses.get(i), CachedResponse.forProduct(misses.get(i), reply[i]),
+                                versions.get(i));
+                    } else {
+                        cache.addMissingIfCurrent(misses.get(i), versions.get(i));
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+                return;
+            }
+        }
+
+        byte[] response = buildSuccessResponse(replies).getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, response.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(response);
+        os.close();
+    }
+
+    // One "price,quantity" or "-1" answer per queried product, in order
+    private boolean isReplyFor(List<String> misses, String[] reply) {
+        if(reply.length != misses.size()) {
+            return false;
+        }
+        for(String answer : reply) {
+            if(!answer.equals("-1") && answer.split(",", -1).length != 2) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void sendError(HttpExchange exchange, int code, byte[] response) throws IOException {
+        exchange.sendResponseHeaders(code, response.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(response);
+        os.close();
+    }
+
+    // Reads the product names out of the names=a,b,c query parameter, without duplicates
+    private List<String> getProducts(String query) {
+        List<String> products = new ArrayList<>();
+        if(query == null) {
+            return products;
+        }
+        for(String parameter : query.split("&")) {
+            if(!parameter.startsWith("names=")) {
+                continue;
+            }
+            String names = URLDecoder.decode(parameter.substring("names=".length()), StandardCharsets.UTF_8);
+            for(String name : names.split(",")) {
+                String product = name.trim().toLowerCase();
+                if(!product.isEmpty() && !products.contains(product)) {
+                    products.add(product);
+                }
+            }
+        }
+        return products;
+    }
+
+    private String buildSuccessResponse(Map<String, String> replies) {
+        StringBuilder data = new StringBuilder();
+        StringBuilder notFound = new StringBuilder();
+        for(Map.Entry<String, String> entry : replies.entrySet()) {
+            if(entry.getValue() == null) {
+                notFound.append(notFound.length() > 0 ? ", " : "").append("\"").append(entry.getKey()).append("\"");
+                continue;
+            }
+            String price = entry.getValue().split(",")[0];
+            String quantity = entry.getValue().split(",")[1];
+            data.append(data.length() > 0 ? ",\n" : "\n").append(String.format(
+                    "\t\t{\n\t\t\t\"name\": \"%s\",\n\t\t\t\"price\": %s,\n\t\t\t\"quantity\": %s\n\t\t}",
+                    entry.getKey(), price, quantity));
+        }
+        return String.format("{\n\t\"data\": [%s\n\t],\n\t\"not_found\": [%s]\n}", data, notFound);
+    }
+}
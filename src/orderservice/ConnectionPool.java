@@ -0,0 +1,243 @@
+package orderservice;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of persistent connections to one host of the line based socket protocol.
+ *
+ * The catalog and order services read requests in a loop, so a connection can carry any number of request/reply
+ * exchanges. Connections are borrowed for one exchange and returned afterwards. At most MAX_CONNECTIONS are open per
+ * host, borrowers wait up to BORROW_TIMEOUT_MS for a free one. Connections that sat idle for more than
+ * VALIDATE_IDLE_MS are checked before use, and connections idle for more than IDLE_TIMEOUT_MS are closed by a
+ * background evictor.
+ *
+ * A reply that does not come within the read timeout of the pool (READ_TIMEOUT_MS unless given) fails the request and
+ * the connection is closed, since its reply could still arrive and be taken for the reply to the next request.
+ */
+public class ConnectionPool {
+    private static final int MAX_CONNECTIONS = 32;
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    private static final long BORROW_TIMEOUT_MS = 2000;
+    private static final long VALIDATE_IDLE_MS = 500;
+    private static final long IDLE_TIMEOUT_MS = 30000;
+    private static final int READ_TIMEOUT_MS = 5000;
+
+    private static final Map<String, ConnectionPool> pools = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "connection-pool-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        evictor.scheduleWithFixedDelay(() -> {
+            for(ConnectionPool pool : pools.values()) {
+                pool.evictIdle();
+            }
+        }, IDLE_TIMEOUT_MS, IDLE_TIMEOUT_MS / 2, TimeUnit.MILLISECONDS);
+    }
+
+    private final String host;
+    private final int port;
+    private final int readTimeoutMillis;
+    private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+    private final Semaphore permits = new Semaphore(MAX_CONNECTIONS);
+
+    private ConnectionPool(String host, int port, int readTimeoutMillis) {
+        this.host = host;
+        this.port = port;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * Returns the shared pool for the given host and port.
+     */
+    public static ConnectionPool forHost(String host, int port) {
+        return forHost(host, port, READ_TIMEOUT_MS);
+    }
+
+    /**
+     * Returns the shared pool for the given host and port, waiting up to readTimeoutMillis for each reply. The pool
+     * keeps the read timeout it was created with.
+     */
+    public static ConnectionPool forHost(String host, int port, int readTimeoutMillis) {
+        return pools.computeIfAbsent(host + ":" + port, key -> new ConnectionPool(host, port, readTimeoutMillis));
+    }
+
+    /**
+     * Sends one request line and returns the reply line. If a reused connection cannot take the request, it is
+     * replaced by a new one and the request is sent once more. Once the request is written it is never sent again, as
+     * the server may have processed it, and a failed or missing reply fails the request. A line with a line break is
+     * rejected, the server would read it as several requests and the replies would get out of step.
+     */
+    public String request(String line) throws IOException {
+        if(line.indexOf('\n') >= 0 || line.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("Request line contains a line break");
+        }
+        Connection connection = borrow();
+        boolean reused = connection.reused;
+        try {
+            connection.send(line);
+        } catch (IOException e) {
+            invalidate(connection);
+            if(!reused) {
+                throw e;
+            }
+            connection = borrowNew();
+            try {
+                connection.send(line);
+            } catch (IOException retryException) {
+                invalidate(connection);
+                throw retryException;
+            }
+        }
+        try {
+            String reply = connection.readReply();
+            release(connection);
+            return reply;
+        } catch (IOException e) {
+            invalidate(connection);
+            throw e;
+        }
+    }
+
+    private Connection borrow() throws IOException {
+        acquire();
+        Connection connection;
+        // Most recently used connections first, they are the least likely to have been closed
+        while((connection = idle.pollFirst()) != null) {
+            if(System.currentTimeMillis() - connection.lastUsed < VALIDATE_IDLE_MS || connection.isHealthy()) {
+                connection.reused = true;
+                return connection;
+            }
+            connection.close();
+        }
+        return open();
+    }
+
+    private Connection borrowNew() throws IOException {
+        acquire();
+        return open();
+    }
+
+    private void release(Connection connection) {
+        connection.lastUsed = System.currentTimeMillis();
+        idle.offerFirst(connection);
+        permits.release();
+    }
+
+    private void invalidate(Connection connection) {
+        connection.close();
+        permits.release();
+    }
+
+    private void acquire() throws IOException {
+        try {
+            if(!permits.tryAcquire(BORROW_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("No free connection to " + host + ":" + port);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private Connection open() throws IOException {
+        try {
+            return new Connection(host, port, readTimeoutMillis);
+        } catch (IOException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<Connection> iterator = idle.descendingIterator();
+        while(iterator.hasNext()) {
+            Connection connection = iterator.next();
+            if(now - connection.lastUsed > IDLE_TIMEOUT_MS && idle.removeLastOccurrence(connection)) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * A persistent connection. Only used by one borrower at a time.
+     */
+    private static class Connection {
+        private final SocketChannel channel;
+        private final PrintWriter out;
+        private final BufferedReader in;
+        private volatile long lastUsed = System.currentTimeMillis();
+        private boolean reused = false;
+
+        Connection(String host, int port, int readTimeoutMillis) throws IOException {
+            channel = SocketChannel.open();
+            try {
+                channel.socket().connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().setSoTimeout(readTimeoutMillis);
+                out = new PrintWriter(channel.socket().getOutputStream(), true);
+                in = new BufferedReader(new InputStreamReader(channel.socket().getInputStream()));
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        // throws SocketTimeoutException when the reply does not come within the read timeout
+        String readReply() throws IOException {
+            String reply = in.readLine();
+            if(reply == null) {
+                throw new IOException("Connection closed by server");
+            }
+            return reply;
+        }
+
+        void send(String line) throws IOException {
+            out.println(line);
+            if(out.checkError()) {
+                throw new IOException("Could not write to server");
+            }
+        }
+
+        // A healthy idle connection has nothing to read: a -1 means the server closed it, data means it is out of sync
+        boolean isHealthy() {
+            if(!channel.isOpen()) {
+                return false;
+            }
+            try {
+                channel.configureBlocking(false);
+                try {
+                    return channel.read(ByteBuffer.allocate(1)) == 0;
+                } finally {
+                    channel.configureBlocking(true);
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
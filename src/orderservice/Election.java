@@ -0,0 +1,396 @@
+package orderservice;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lease based leader election between the order service replicas.
+ *
+ * Every replica knows the others by their host names (the command line arguments) and announces itself as
+ * ORDER_NODE_HOST (default the local host name). Time is split into terms, each with at most one leader, and the term
+ * and the vote of the term are kept in a small state file so a restarted replica does not vote twice.
+ *
+ * The leader sends "HEARTBEAT,<term>,<leader host>" to every replica in parallel every ELECTION_HEARTBEAT_MS (default
+ * 50). A replica that accepts it promises not to vote for anybody else for ELECTION_LEASE_MS (default 300). The leader
+ * holds a lease while a majority, itself included, accepted a heartbeat within ELECTION_LEASE_MS, counted from when the
+ * heartbeat was sent, so its lease always runs out before the replicas stop honouring it. A leader without a lease
+ * steps down and refuses buys.
+ *
+ * A replica that has not heard from a leader for ELECTION_LEASE_MS plus a random delay starts a new term and asks the
+ * others with "VOTE,<term>,<host>,<last order number>". Replicas grant one vote per term, only to a candidate whose log
+ * is at least as long as their own, and never while they still honour a leader's lease. A candidate with a majority of
+ * the votes becomes leader, so a failover takes about ELECTION_LEASE_MS plus one round trip.
+ *
+ * Replication carries the term, and replicas refuse orders from leaders of older terms, which fences off an old leader
+ * that has not noticed it was replaced yet.
+ */
+public class Election {
+
+    /**
+     * Told when this replica becomes leader and when it stops being leader. Called with the election locked.
+     */
+    public interface Listener {
+        void elected(int term);
+
+        void deposed();
+    }
+
+    private final String self;
+    private final List<Peer> peers = new ArrayList<>();
+    private final int port;
+    private final OrderLog orderLog;
+    private final Path stateFile;
+    private final long heartbeatNanos;
+    private final long leaseNanos;
+    private final Listener listener;
+    private final ExecutorService rpcs = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "election-rpc");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private int term = 0;
+    private String votedFor = null;
+    private boolean leading = false;
+    private String leaderHost = null;
+    // until when this replica honours the lease of the leader it heard from or voted for last
+    private long followerLeaseUntil;
+    private long campaignAt;
+
+    public Election(List<String> hosts, int port, OrderLog orderLog, Path stateFile, Listener listener)
+            throws IOException {
+        String configuredHost = System.getenv("ORDER_NODE_HOST");
+        this.self = configuredHost == null || configuredHost.isBlank() ? InetAddress.getLocalHost().getHostName()
+                : configuredHost.trim();
+        for(String host : hosts) {
+            peers.add(new Peer(host));
+        }
+        this.port = port;
+        this.orderLog = orderLog;
+        this.stateFile = stateFile;
+        this.heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(getLongEnv("ELECTION_HEARTBEAT_MS", 50));
+        this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(getLongEnv("ELECTION_LEASE_MS", 300));
+        this.listener = listener;
+        loadState();
+    }
+
+    /**
+     * Starts the election thread. A new replica first waits one lease for the heartbeats of a current leader.
+     */
+    public synchronized void start() {
+        renewFollowerLease();
+        Thread thread = new Thread(this::run, "election");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("Election started as " + self + " in term " + term + " with " + peers.size() + " peers");
+    }
+
+    /**
+     * True while this replica is the leader and holds a lease, only then may it take orders.
+     */
+    public synchronized boolean isLeader() {
+        return leading && System.nanoTime() < leaderLeaseUntil();
+    }
+
+    /**
+     * True while this replica is the leader of the given term and holds its lease. Orders carry the term they were
+     * taken in and are checked again before they are logged and confirmed.
+     */
+    public synchronized boolean isLeaderOf(int leaderTerm) {
+        return leaderTerm == term && isLeader();
+    }
+
+    /**
+     * The term this replica leads and holds a lease for, or -1 if it is not the leader.
+     */
+    public synchronized int leaderTerm() {
+        return isLeader() ? term : -1;
+    }
+
+    /**
+     * "<leader host>,<term>" of the leader this replica knows of, or "-1" when there is an election going on.
+     */
+    public synchronized String leader() {
+        if(isLeader()) {
+            return self + "," + term;
+        }
+        if(leaderHost != null && System.nanoTime() < followerLeaseUntil) {
+            return leaderHost + "," + term;
+        }
+        return "-1";
+    }
+
+    /**
+     * Handles "HEARTBEAT,<term>,<leader host>" and returns "HEARTBEAT,<term>,<accepted>".
+     */
+    public synchronized String onHeartbeat(int leaderTerm, String leader) {
+        if(leaderTerm < term) {
+            return "HEARTBEAT," + term + ",false";
+        }
+        observe(leaderTerm);
+        stepDown();
+        if(!leader.equals(leaderHost)) {
+            System.out.println("Following " + leader + " in term " + leaderTerm);
+        }
+        leaderHost = leader;
+        renewFollowerLease();
+        return "HEARTBEAT," + term + ",true";
+    }
+
+    /**
+     * Handles "VOTE,<term>,<candidate host>,<last order number>" and returns "VOTE,<term>,<granted>".
+     */
+    public synchronized String onVote(int candidateTerm, String candidate, int lastOrderNumber) {
+        // a replica that still honours a lease does not let candidates disturb the current leader
+        boolean leaseHeld = isLeader() || (System.nanoTime() < followerLeaseUntil && !candidate.equals(votedFor));
+        if(candidateTerm < term || leaseHeld) {
+            return "VOTE," + term + ",false";
+        }
+        observe(candidateTerm);
+        if(votedFor != null && !votedFor.equals(candidate) || lastOrderNumber < orderLog.getLastOrderNumber()) {
+            return "VOTE," + term + ",false";
+        }
+        votedFor = candidate;
+        saveState();
+        // the vote is a promise to the candidate, like an accepted heartbeat
+        renewFollowerLease();
+        return "VOTE," + term + ",true";
+    }
+
+    /**
+     * Checks the term replicated orders come with. Returns false for a leader of an older term.
+     */
+    public synchronized boolean acceptsLeader(int leaderTerm) {
+        if(leaderTerm < term) {
+            return false;
+        }
+        observe(leaderTerm);
+        return true;
+    }
+
+    public synchronized int getTerm() {
+        return term;
+    }
+
+    private void run() {
+        while(true) {
+            long tickStart = System.nanoTime();
+            try {
+                boolean campaign;
+                synchronized (this) {
+                    if(leading && System.nanoTime() >= leaderLeaseUntil()) {
+                        System.out.println("Lost the leader lease of term " + term);
+                        stepDown();
+                    }
+                    campaign = !leading && System.nanoTime() >= Math.max(followerLeaseUntil, campaignAt);
+                }
+                if(campaign) {
+                    campaign();
+                } else if(isLeading()) {
+                    heartbeat();
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            long sleep = heartbeatNanos - (System.nanoTime() - tickStart);
+            if(sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
+    private synchronized boolean isLeading() {
+        return leading;
+    }
+
+    // Sends a heartbeat to every peer that is not still busy with the previous one
+    private void heartbeat() {
+        int heartbeatTerm = getTerm();
+        long sentAt = System.nanoTime();
+        for(Peer peer : peers) {
+            if(peer.pending != null && !peer.pending.isDone()) {
+                continue;
+            }
+            peer.pending = rpcs.submit(() -> {
+                String[] reply = peer.request("HEARTBEAT," + heartbeatTerm + "," + self);
+                if(reply != null) {
+                    onReply(peer, Integer.parseInt(reply[1]), Boolean.parseBoolean(reply[2]), heartbeatTerm, sentAt);
+                }
+            });
+        }
+    }
+
+    private void campaign() {
+        int campaignTerm;
+        int lastOrderNumber = orderLog.getLastOrderNumber();
+        synchronized (this) {
+            term++;
+            votedFor = self;
+            leaderHost = null;
+            saveState();
+            campaignTerm = term;
+            campaignAt = System.nanoTime() + leaseNanos / 2 + randomDelay();
+        }
+        System.out.println("Campaigning for term " + campaignTerm);
+        long sentAt = System.nanoTime();
+        List<Future<?>> votes = new ArrayList<>();
+        for(Peer peer : peers) {
+            peer.ackedAt = 0;
+            votes.add(rpcs.submit(() -> {
+                String[] reply = peer.request("VOTE," + campaignTerm + "," + self + "," + lastOrderNumber);
+                if(reply != null) {
+                    onReply(peer, Integer.parseInt(reply[1]), Boolean.parseBoolean(reply[2]), campaignTerm, sentAt);
+                }
+            }));
+        }
+        long deadline = sentAt + leaseNanos / 2;
+        synchronized (this) {
+            while(term == campaignTerm && !leading && System.nanoTime() < deadline) {
+                if(System.nanoTime() < leaderLeaseUntil()) {
+                    leading = true;
+                    leaderHost = self;
+                    System.out.println("Elected leader of term " + term);
+                    listener.elected(term);
+                    break;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, Math.max(1, deadline - System.nanoTime()));
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        for(Future<?> vote : votes) {
+            vote.cancel(false);
+        }
+    }
+
+    // A heartbeat or vote reply: a newer term means another leader, an accepted one extends the lease
+    private synchronized void onReply(Peer peer, int replyTerm, boolean accepted, int sentTerm, long sentAt) {
+        if(replyTerm > term) {
+            observe(replyTerm);
+            stepDown();
+        } else if(accepted && replyTerm == sentTerm && sentTerm == term) {
+            peer.ackedAt = Math.max(peer.ackedAt, sentAt);
+            notifyAll();
+        }
+    }
+
+    // The leader's lease runs from the oldest heartbeat that a majority, this replica included, accepted
+    private long leaderLeaseUntil() {
+        int needed = (peers.size() + 1) / 2;
+        if(needed == 0) {
+            return Long.MAX_VALUE;
+        }
+        long[] acked = new long[peers.size()];
+        for(int i = 0; i < peers.size(); i++) {
+            acked[i] = peers.get(i).ackedAt;
+        }
+        Arrays.sort(acked);
+        long oldest = acked[acked.length - needed];
+        return oldest == 0 ? 0 : oldest + leaseNanos;
+    }
+
+    private void observe(int newTerm) {
+        if(newTerm > term) {
+            term = newTerm;
+            votedFor = null;
+            leaderHost = null;
+            saveState();
+            stepDown();
+        }
+    }
+
+    private void stepDown() {
+        if(leading) {
+            leading = false;
+            System.out.println("Stepping down as leader");
+            listener.deposed();
+        }
+    }
+
+    // Replicas wait a random delay after the lease before they campaign, so they rarely split the votes
+    private void renewFollowerLease() {
+        followerLeaseUntil = System.nanoTime() + leaseNanos;
+        campaignAt = followerLeaseUntil + randomDelay();
+    }
+
+    private long randomDelay() {
+        return ThreadLocalRandom.current().nextLong(heartbeatNanos, Math.max(heartbeatNanos + 1, leaseNanos / 2));
+    }
+
+    private void loadState() throws IOException {
+        if(Files.exists(stateFile)) {
+            String[] state = Files.readString(stateFile, StandardCharsets.UTF_8).trim().split(",");
+            term = Integer.parseInt(state[0]);
+            votedFor = state.length > 1 && !state[1].isEmpty() ? state[1] : null;
+        }
+    }
+
+    // "<term>,<voted for>", forced to disk before the vote is answered
+    private void saveState() {
+        Path temporary = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+        String state = term + "," + (votedFor == null ? "" : votedFor) + "\n";
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(state.getBytes(StandardCharsets.UTF_8)));
+            channel.force(true);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            Files.move(temporary, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private class Peer {
+        final String host;
+        // when the last heartbeat or vote request it accepted in the current term was sent
+        volatile long ackedAt = 0;
+        Future<?> pending;
+
+        Peer(String host) {
+            this.host = host;
+        }
+
+        // The split reply, or null when the peer cannot be reached
+        String[] request(String line) {
+            try {
+                // a reply that comes after the lease would have run out is no use
+                return ConnectionPool.forHost(host, port, (int) TimeUnit.NANOSECONDS.toMillis(leaseNanos))
+                        .request(line).split(",");
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+
+    private static long getLongEnv(String name, long defaultValue) {
+        String value = System.getenv(name);
+        if(value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        return Long.parseLong(value.trim());
+    }
+}
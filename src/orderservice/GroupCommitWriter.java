@@ -0,0 +1,162 @@
+package orderservice;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group commit writer for durable records.
+ *
+ * Callers queue their records and block until the record is on disk. A single flusher thread takes up to
+ * maxBatchSize queued records, hands them to the sink in one write and forces them to disk with one call, and only
+ * then acknowledges every caller in the batch. maxWaitMillis is how long the flusher waits for a batch to fill up:
+ * 0 flushes whatever queued up during the previous force (lowest latency), higher values trade latency for fewer
+ * forces.
+ *
+ * The sink sees the records in queue order and may complete them before they are written, e.g. give them a sequence
+ * number. Every caller gets back its records as they were written.
+ */
+public class GroupCommitWriter {
+
+    /**
+     * Destination of a batch. Implementations must write all the records and force them to disk before returning.
+     * They may replace records in the list with what they actually wrote.
+     */
+    public interface Sink {
+        void write(List<String> records) throws IOException;
+    }
+
+    private static class Pending {
+        final List<String> records;
+        final CompletableFuture<List<String>> done = new CompletableFuture<>();
+
+        Pending(List<String> records) {
+            this.records = records;
+        }
+    }
+
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Sink sink;
+    private final int maxBatchSize;
+    private final long maxWaitMillis;
+
+    public GroupCommitWriter(String name, Sink sink, int maxBatchSize, long maxWaitMillis) {
+        this.sink = sink;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxWaitMillis = Math.max(0, maxWaitMillis);
+
+        Thread flusher = new Thread(this::flushLoop, name + "-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Creates a writer configured through the environment variables <prefix>_COMMIT_BATCH_SIZE and
+     * <prefix>_COMMIT_MAX_WAIT_MS.
+     */
+    public static GroupCommitWriter fromEnv(String prefix, Sink sink) {
+        int batchSize = getIntEnv(prefix + "_COMMIT_BATCH_SIZE", 64);
+        int maxWait = getIntEnv(prefix + "_COMMIT_MAX_WAIT_MS", 0);
+        System.out.println(prefix + " group commit: batch size " + batchSize + ", max wait " + maxWait + "ms");
+        return new GroupCommitWriter(prefix.toLowerCase(), sink, batchSize, maxWait);
+    }
+
+    /**
+     * Queues the record without waiting for it to be written.
+     */
+    public CompletableFuture<List<String>> submit(String record) {
+        Pending pending = new Pending(List.of(record));
+        queue.add(pending);
+        return pending.done;
+    }
+
+    /**
+     * Queues the record and blocks until it has been forced to disk. Returns the record as it was written.
+     */
+    public String append(String record) throws IOException {
+        return await(submit(record)).get(0);
+    }
+
+    /**
+     * Writes all the records in order with one write and one force, without counting them against maxBatchSize, and
+     * blocks until they are on disk. Meant for bulk loads.
+     */
+    public void appendAll(List<String> records) throws IOException {
+        Pending pending = new Pending(new ArrayList<>(records));
+        queue.add(pending);
+        await(pending.done);
+    }
+
+    private static List<String> await(CompletableFuture<List<String>> done) throws IOException {
+        try {
+            return done.join();
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void flushLoop() {
+        List<Pending> batch = new ArrayList<>(maxBatchSize);
+        List<String> records = new ArrayList<>(maxBatchSize);
+        while(true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, maxBatchSize - batch.size());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+                while(batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if(remaining <= 0) {
+                        break;
+                    }
+                    Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if(next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, maxBatchSize - batch.size());
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+
+            for(Pending pending : batch) {
+                records.addAll(pending.records);
+            }
+            try {
+                sink.write(records);
+                int offset = 0;
+                for(Pending pending : batch) {
+                    int size = pending.records.size();
+                    pending.done.complete(new ArrayList<>(records.subList(offset, offset + size)));
+                    offset += size;
+                }
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                UncheckedIOException failure = new UncheckedIOException(e instanceof IOException
+                        ? (IOException) e : new IOException(e));
+                for(Pending pending : batch) {
+                    pending.done.completeExceptionally(failure);
+                }
+            }
+            batch.clear();
+            records.clear();
+        }
+    }
+
+    private static int getIntEnv(String name, int defaultValue) {
+        String value = System.getenv(name);
+        if(value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.trim());
+    }
+}
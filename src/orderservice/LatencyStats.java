@@ -0,0 +1,43 @@
+package orderservice;
+
+import java.util.Arrays;
+
+/**
+ * Latency samples of one kind of operation. Keeps the count and the maximum of all samples and the last SAMPLES
+ * samples for the percentiles.
+ */
+public class LatencyStats {
+    private static final int SAMPLES = 10000;
+
+    private final long[] samples = new long[SAMPLES];
+    private long count = 0;
+    private long max = 0;
+
+    public synchronized void record(long nanos) {
+        samples[(int) (count % SAMPLES)] = nanos;
+        count++;
+        max = Math.max(max, nanos);
+    }
+
+    /**
+     * Formats the stats in milliseconds as "count:n,p50:x,p99:y,max:z".
+     */
+    @Override
+    public synchronized String toString() {
+        if(count == 0) {
+            return "count:0";
+        }
+        long[] sorted = Arrays.copyOf(samples, (int) Math.min(count, SAMPLES));
+        Arrays.sort(sorted);
+        return String.format("count:%d,p50:%.2f,p99:%.2f,max:%.2f", count, millis(percentile(sorted, 0.50)),
+                millis(percentile(sorted, 0.99)), millis(max));
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1)];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
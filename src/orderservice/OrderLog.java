@@ -0,0 +1,857 @@
+package orderservice;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The order log, "order_number,product_name,quantity" lines split into segment files. A cart order lists all its
+ * products in one line, "order_number,product_name,quantity,product_name,quantity,...".
+ *
+ * Segments are named by the first order number they hold, e.g. order_log_0000000001.csv, and a new segment is started
+ * once the active one reaches ORDER_SEGMENT_BYTES (default 16MB). Every segment has a sparse index sidecar
+ * order_log_0000000001.index with one (order number, offset) entry per INDEX_INTERVAL bytes of log. A query finds its
+ * segment by number and the closest index entry before the order, and reads at most a few KB from there.
+ *
+ * Only the active segment is read at startup, for the last order number and the index entries the sidecar is missing.
+ * Older segments are opened when a query or SYNC needs them, and at most MAX_OPEN_SEGMENTS of them stay open. With
+ * ORDER_COMPRESS_SEGMENTS=true the sealed segments, except the newest KEEP_UNCOMPRESSED, are gzipped in the
+ * background. They stay readable, just slower, and the recent orders that are queried the most never touch them.
+ *
+ * New orders are numbered by the group commit flusher as it writes them, so order numbers grow along the log no matter
+ * how many threads buy at once. Replicated and synced orders keep the numbers they come with and arrive in order, so
+ * an order is always in the segment and index range its number points to. A line that was only partly written when
+ * the service stopped is cut off on startup, and a legacy single order_log.csv in the directory becomes the first
+ * segment.
+ */
+public class OrderLog {
+    private static final String PREFIX = "order_log_";
+    private static final String LEGACY_FILE = "order_log.csv";
+    private static final long INDEX_INTERVAL = 4096;
+    private static final int INDEX_ENTRY_SIZE = 12;
+    private static final int MAX_OPEN_SEGMENTS = 8;
+    private static final int KEEP_UNCOMPRESSED = 2;
+    private static final int MAX_LINE_LENGTH = 1024;
+    // queued in place of the order number of a new order, followed by the term it was taken in, order numbers start
+    // at 1
+    private static final String UNNUMBERED = "0,";
+    // handed back in place of a new order whose term the fence rejected, it is not written
+    private static final String FENCED = "-1";
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final boolean compressSegments;
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    // sealed segments with an open file, least recently used first
+    private final LinkedHashMap<Integer, Segment> openSegments = new LinkedHashMap<>(16, 0.75f, true);
+    private final ExecutorService compressor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "order-log-compressor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final GroupCommitWriter writer;
+    private volatile Segment active;
+    private volatile int lastOrderNumber = 0;
+    private volatile Consumer<List<String>> appendListener;
+    private volatile IntPredicate termFence;
+
+    public OrderLog(Path directory) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = getLongEnv("ORDER_SEGMENT_BYTES", 16 * 1024 * 1024);
+        this.compressSegments = Boolean.parseBoolean(System.getenv("ORDER_COMPRESS_SEGMENTS"));
+        Files.createDirectories(directory);
+        migrateLegacyFile();
+        findSegments();
+
+        // only the newest segment is read at startup
+        while(!segments.isEmpty()) {
+            Segment last = segments.lastEntry().getValue();
+            last.openForAppend();
+            if(last.size > 0) {
+                active = last;
+                lastOrderNumber = last.lastNumber;
+                break;
+            }
+            // rolled over but nothing was written to it before the service stopped
+            last.delete();
+            segments.remove(last.baseNumber);
+        }
+        scheduleCompression();
+        writer = GroupCommitWriter.fromEnv("ORDER", this::write);
+    }
+
+    /**
+     * The highest order number in the log, 0 if it is empty.
+     */
+    public int getLastOrderNumber() {
+        return lastOrderNumber;
+    }
+
+    /**
+     * Numbers the order "product_name,quantity[,product_name,quantity...]" taken in the given leader term with the next
+     * order number, appends it and blocks until it is on disk and visible to {@link #read(int)}. Returns the order
+     * number, or -1 if the term fence rejected the term when the order came up for writing.
+     */
+    public int append(String items, int term) throws IOException {
+        String written = writer.append(UNNUMBERED + term + "," + items);
+        return written.equals(FENCED) ? -1 : orderNumberOf(written);
+    }
+
+    /**
+     * Sets the listener the flusher hands every written batch of lines to, in log order, before the writers are
+     * acknowledged. It runs on the flusher thread and must not block.
+     */
+    public void setAppendListener(Consumer<List<String>> listener) {
+        appendListener = listener;
+    }
+
+    /**
+     * Sets the check the flusher runs on the term of every new order right before numbering it. An order whose term
+     * fails it is not written, so a leader that was deposed while the order was on its way is never given a number
+     * the new leader hands out as well. Replicated orders keep their numbers and are not checked.
+     */
+    public void setTermFence(IntPredicate fence) {
+        termFence = fence;
+    }
+
+    /**
+     * Returns the logged line of the order, or null if there is no such order.
+     */
+    public String read(int orderNumber) throws IOException {
+        if(orderNumber > lastOrderNumber) {
+            return null;
+        }
+        Map.Entry<Integer, Segment> segment = segments.floorEntry(orderNumber);
+        return segment == null ? null : touch(segment.getValue()).find(orderNumber);
+    }
+
+    /**
+     * Appends already numbered "order_number,product_name,quantity" lines with one write and one force and blocks
+     * until they are on disk. Used to apply a SYNC stream.
+     */
+    public void appendAll(List<String> lines) throws IOException {
+        if(!lines.isEmpty()) {
+            writer.appendAll(lines);
+        }
+    }
+
+    /**
+     * Opens the log from the given order on for sending, in log order: plain segments as file regions, compressed ones
+     * as streams of their uncompressed content. Empty if there is no such order. The caller closes what is returned.
+     */
+    public List<Region> regionsFrom(int orderNumber) throws IOException {
+        List<Region> regions = new ArrayList<>();
+        if(orderNumber > lastOrderNumber) {
+            return regions;
+        }
+        Map.Entry<Integer, Segment> floor = segments.floorEntry(orderNumber);
+        if(floor == null) {
+            return regions;
+        }
+        Segment segment = floor.getValue();
+        long offset = touch(segment).lineOffset(orderNumber);
+        if(offset >= 0) {
+            regions.add(segment.open(offset));
+            for(Segment next : segments.tailMap(segment.baseNumber, false).values()) {
+                regions.add(touch(next).open(0));
+            }
+        }
+        return regions;
+    }
+
+    // Group commit sink, only called by the flusher thread. It is the only thread numbering orders, so new orders are
+    // numbered in log order without any locking.
+    private void write(List<String> records) throws IOException {
+        List<String> lines = new ArrayList<>(records.size());
+        int[] numbers = new int[records.size()];
+        int last = lastOrderNumber;
+        IntPredicate fence = termFence;
+        // the last term checked, a batch is mostly of one term
+        int acceptedTerm = -1;
+        for(int i = 0; i < records.size(); i++) {
+            String record = records.get(i);
+            if(record.startsWith(UNNUMBERED)) {
+                int termEnd = record.indexOf(',', UNNUMBERED.length());
+                int term = Integer.parseInt(record.substring(UNNUMBERED.length(), termEnd));
+                if(term != acceptedTerm) {
+                    if(fence != null && !fence.test(term)) {
+                        records.set(i, FENCED);
+                        continue;
+                    }
+                    acceptedTerm = term;
+                }
+                numbers[lines.size()] = ++last;
+                records.set(i, numbers[lines.size()] + record.substring(termEnd));
+            } else {
+                numbers[lines.size()] = orderNumberOf(record);
+                last = Math.max(last, numbers[lines.size()]);
+            }
+            lines.add(records.get(i));
+        }
+        if(lines.isEmpty()) {
+            return;
+        }
+        if(active == null || active.size >= segmentBytes) {
+            roll(numbers[0]);
+        }
+        active.append(lines, numbers);
+        lastOrderNumber = last;
+        Consumer<List<String>> listener = appendListener;
+        if(listener != null) {
+            listener.accept(lines);
+        }
+    }
+
+    private void roll(int baseNumber) throws IOException {
+        if(active != null && baseNumber <= active.baseNumber) {
+            // segments are ordered by their base numbers, an order logged late stays in the active segment
+            return;
+        }
+        Segment sealed = active;
+        Segment segment = new Segment(baseNumber, false);
+        segment.openForAppend();
+        segments.put(baseNumber, segment);
+        active = segment;
+        if(sealed != null) {
+            sealed.seal();
+            touch(sealed);
+            System.out.println("Order log rolled over to " + segment.file.getFileName());
+            scheduleCompression();
+        }
+    }
+
+    // Marks the sealed segment as recently used and closes the least recently used ones
+    private synchronized Segment touch(Segment segment) {
+        if(segment != active) {
+            openSegments.put(segment.baseNumber, segment);
+            Iterator<Segment> iterator = openSegments.values().iterator();
+            while(openSegments.size() > MAX_OPEN_SEGMENTS && iterator.hasNext()) {
+                Segment eldest = iterator.next();
+                iterator.remove();
+                eldest.close();
+            }
+        }
+        return segment;
+    }
+
+    private void scheduleCompression() {
+        if(!compressSegments) {
+            return;
+        }
+        List<Segment> sealed = new ArrayList<>(segments.headMap(active == null ? Integer.MAX_VALUE : active.baseNumber)
+                .values());
+        for(int i = 0; i < sealed.size() - KEEP_UNCOMPRESSED; i++) {
+            Segment segment = sealed.get(i);
+            if(!segment.compressed) {
+                compressor.execute(() -> {
+                    try {
+                        segment.compress();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                });
+            }
+        }
+    }
+
+    private void migrateLegacyFile() throws IOException {
+        Path legacy = directory.resolve(LEGACY_FILE);
+        if(!Files.exists(legacy)) {
+            return;
+        }
+        int baseNumber = 0;
+        try (InputStream in = Files.newInputStream(legacy)) {
+            int b;
+            while((b = in.read()) >= '0' && b <= '9') {
+                baseNumber = baseNumber * 10 + (b - '0');
+            }
+        }
+        if(Files.size(legacy) == 0) {
+            Files.delete(legacy);
+            return;
+        }
+        Path target = directory.resolve(segmentName(baseNumber) + ".csv");
+        System.out.println("Moving " + legacy + " to " + target);
+        Files.move(legacy, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void findSegments() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*")) {
+            for(Path file : files) {
+                String name = file.getFileName().toString();
+                if(name.endsWith(".tmp")) {
+                    Files.delete(file);
+                    continue;
+                }
+                boolean compressed = name.endsWith(".csv.gz");
+                if(!compressed && !name.endsWith(".csv")) {
+                    continue;
+                }
+                int baseNumber = Integer.parseInt(name.substring(PREFIX.length(), name.indexOf('.')));
+                // a segment that was compressed but not deleted yet is still read from the plain file
+                if(compressed && segments.containsKey(baseNumber)) {
+                    Files.delete(file);
+                    continue;
+                }
+                if(!compressed && segments.containsKey(baseNumber)) {
+                    Files.delete(segments.get(baseNumber).compressedFile);
+                }
+                segments.put(baseNumber, new Segment(baseNumber, compressed));
+            }
+        }
+    }
+
+    private static String segmentName(int baseNumber) {
+        return PREFIX + String.format("%010d", baseNumber);
+    }
+
+    static int orderNumberOf(String line) {
+        int end = line.indexOf(',');
+        try {
+            return Integer.parseInt((end < 0 ? line : line.substring(0, end)).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long getLongEnv(String name, long defaultValue) {
+        String value = System.getenv(name);
+        if(value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        return Long.parseLong(value.trim());
+    }
+
+    interface LineVisitor {
+        // returns false to stop reading
+        boolean visit(String line);
+    }
+
+    /**
+     * One segment file and its sparse index. The active segment is only appended to by the flusher and read without
+     * locks up to its published size. Sealed segments are opened, closed and compressed under the segment's lock.
+     */
+    private class Segment {
+        final int baseNumber;
+        final Path file;
+        final Path indexFile;
+        final Path compressedFile;
+        volatile boolean compressed;
+        volatile long size;
+        int lastNumber;
+
+        private FileChannel channel;
+        private FileChannel indexChannel;
+        private SparseIndex index;
+        private long lastIndexedOffset = -INDEX_INTERVAL;
+
+        Segment(int baseNumber, boolean compressed) {
+            this.baseNumber = baseNumber;
+            this.compressed = compressed;
+            String name = segmentName(baseNumber);
+            file = directory.resolve(name + ".csv");
+            indexFile = directory.resolve(name + ".index");
+            compressedFile = directory.resolve(name + ".csv.gz");
+        }
+
+        /**
+         * Opens the newest segment for writing: loads the sidecar, indexes the tail behind its last entry and cuts
+         * off a torn last line. The last order number is the one of the last complete line.
+         */
+        synchronized void openForAppend() throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            indexChannel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            size = channel.size();
+            index = loadIndex();
+            indexChannel.truncate((long) index.entries * INDEX_ENTRY_SIZE);
+            indexChannel.position(indexChannel.size());
+
+            long indexed = index.entries == 0 ? -1 : index.offsets[index.entries - 1];
+            lastIndexedOffset = index.entries == 0 ? -INDEX_INTERVAL : indexed;
+            // an entry is only written once its line is on disk
+            lastNumber = index.entries == 0 ? 0 : index.numbers[index.entries - 1];
+            long end = scan(indexed, true);
+            if(end < size) {
+                System.out.println("Cutting off a partly written order at offset " + end + " of " + file);
+                channel.truncate(end);
+                channel.force(false);
+                size = end;
+            }
+        }
+
+        void append(List<String> records, int[] numbers) throws IOException {
+            long offset = size;
+            long[] offsets = new long[records.size()];
+            ByteArrayOutputStream lines = new ByteArrayOutputStream();
+            for(int i = 0; i < records.size(); i++) {
+                offsets[i] = offset + lines.size();
+                lines.writeBytes(records.get(i).getBytes(StandardCharsets.UTF_8));
+                lines.write('\n');
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(lines.toByteArray());
+            long position = offset;
+            while(buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            channel.force(false);
+            // readers see the batch once it is on disk
+            size = position;
+
+            ByteBuffer entries = ByteBuffer.allocate(records.size() * INDEX_ENTRY_SIZE);
+            for(int i = 0; i < records.size(); i++) {
+                if(offsets[i] - lastIndexedOffset >= INDEX_INTERVAL) {
+                    index.add(numbers[i], offsets[i]);
+                    entries.putInt(numbers[i]).putLong(offsets[i]);
+                    lastIndexedOffset = offsets[i];
+                }
+                lastNumber = Math.max(lastNumber, numbers[i]);
+            }
+            entries.flip();
+            // the sidecar is not forced, entries lost in a crash are rebuilt from the segment on startup
+            while(entries.hasRemaining()) {
+                indexChannel.write(entries);
+            }
+        }
+
+        // The active segment is full: make its sidecar durable and stop writing to it
+        synchronized void seal() throws IOException {
+            indexChannel.force(false);
+            indexChannel.close();
+            indexChannel = null;
+        }
+
+        String find(int orderNumber) throws IOException {
+            long[] range = range(orderNumber);
+            byte[] bytes = readRange(range[0], range[1]);
+            if(bytes == null) {
+                // compressed, the range is read through the gzip stream
+                String[] found = {null};
+                readLines(range[0], range[1], line -> {
+                    if(orderNumberOf(line) == orderNumber) {
+                        found[0] = line;
+                        return false;
+                    }
+                    return true;
+                });
+                return found[0];
+            }
+            int start = findLineStart(bytes, range[1] - range[0], orderNumber);
+            if(start < 0) {
+                return null;
+            }
+            int end = start;
+            while(bytes[end] != '\n') {
+                end++;
+            }
+            return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+        }
+
+        // The offset of the order's line in the segment, -1 if it is not in this segment
+        long lineOffset(int orderNumber) throws IOException {
+            long[] range = range(orderNumber);
+            byte[] bytes = readRange(range[0], range[1]);
+            if(bytes != null) {
+                int start = findLineStart(bytes, range[1] - range[0], orderNumber);
+                return start < 0 ? -1 : range[0] + start;
+            }
+            long[] offset = {range[0]};
+            long[] found = {-1};
+            readLines(range[0], range[1], line -> {
+                if(orderNumberOf(line) == orderNumber) {
+                    found[0] = offset[0];
+                    return false;
+                }
+                offset[0] += line.getBytes(StandardCharsets.UTF_8).length + 1;
+                return true;
+            });
+            return found[0];
+        }
+
+        /**
+         * Opens the segment for sending from the given offset to its current end.
+         */
+        Region open(long from) throws IOException {
+            if(this == active) {
+                return new Region(FileChannel.open(file, StandardOpenOption.READ), from, size - from);
+            }
+            synchronized (this) {
+                if(compressed) {
+                    InputStream in = new GZIPInputStream(Files.newInputStream(compressedFile), 65536);
+                    in.skipNBytes(from);
+                    return new Region(in);
+                }
+                if(channel == null) {
+                    load();
+                }
+                return new Region(FileChannel.open(file, StandardOpenOption.READ), from, size - from);
+            }
+        }
+
+        // Reads the lines starting between from and to with one positioned read, null for a compressed segment
+        private byte[] readRange(long from, long to) throws IOException {
+            if(this == active) {
+                return readRange(channel, from, to, size);
+            }
+            synchronized (this) {
+                if(compressed) {
+                    return null;
+                }
+                if(channel == null) {
+                    load();
+                }
+                return readRange(channel, from, to, size);
+            }
+        }
+
+        private byte[] readRange(FileChannel channel, long from, long to, long size) throws IOException {
+            long end = to >= size - MAX_LINE_LENGTH ? size : to + MAX_LINE_LENGTH;
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, end - from));
+            while(buffer.hasRemaining()) {
+                if(channel.read(buffer, from + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            return buffer.array();
+        }
+
+        // Finds the start of the order's line without decoding the other lines, -1 if it is not in the bytes
+        private int findLineStart(byte[] bytes, long limit, int orderNumber) {
+            int lineStart = 0;
+            while(lineStart < limit && lineStart < bytes.length) {
+                int number = 0;
+                int i = lineStart;
+                while(i < bytes.length && bytes[i] >= '0' && bytes[i] <= '9') {
+                    number = number * 10 + (bytes[i] - '0');
+                    i++;
+                }
+                while(i < bytes.length && bytes[i] != '\n') {
+                    i++;
+                }
+                if(i == bytes.length) {
+                    return -1;
+                }
+                if(number == orderNumber && i > lineStart) {
+                    return lineStart;
+                }
+                lineStart = i + 1;
+            }
+            return -1;
+        }
+
+        // The part of the segment holding the order: from the index entry before it to the next one
+        private synchronized long[] range(int orderNumber) throws IOException {
+            if(index == null) {
+                load();
+            }
+            return index.range(orderNumber);
+        }
+
+        /**
+         * Calls the visitor with every complete line that starts between from and to.
+         */
+        void readLines(long from, long to, LineVisitor visitor) throws IOException {
+            if(this == active) {
+                try (InputStream in = new BufferedInputStream(new ChannelInputStream(channel, from, size))) {
+                    readLines(in, from, to, visitor);
+                }
+                return;
+            }
+            synchronized (this) {
+                if(compressed) {
+                    try (InputStream in = new BufferedInputStream(new GZIPInputStream(Files.newInputStream(
+                            compressedFile)))) {
+                        in.skipNBytes(from);
+                        readLines(in, from, to, visitor);
+                    }
+                    return;
+                }
+                if(channel == null) {
+                    load();
+                }
+                try (InputStream in = new BufferedInputStream(new ChannelInputStream(channel, from, size))) {
+                    readLines(in, from, to, visitor);
+                }
+            }
+        }
+
+        private void readLines(InputStream in, long from, long to, LineVisitor visitor) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            long offset = from;
+            long lineStart = from;
+            int b;
+            while(lineStart < to && (b = in.read()) != -1) {
+                offset++;
+                if(b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                if(!visitor.visit(line.toString(StandardCharsets.UTF_8))) {
+                    return;
+                }
+                line.reset();
+                lineStart = offset;
+            }
+        }
+
+        // Opens a sealed segment for reading and loads or rebuilds its index
+        private void load() throws IOException {
+            if(compressed) {
+                if(index == null) {
+                    index = Files.exists(indexFile) ? loadIndex() : new SparseIndex();
+                }
+                return;
+            }
+            if(channel == null) {
+                channel = FileChannel.open(file, StandardOpenOption.READ);
+                size = channel.size();
+            }
+            if(index == null) {
+                if(Files.exists(indexFile)) {
+                    index = loadIndex();
+                } else {
+                    index = new SparseIndex();
+                    scan(-1, false);
+                    writeIndex();
+                }
+            }
+        }
+
+        // Reads the segment from the given indexed offset on, indexes the lines behind it and returns the offset behind
+        // the last complete line
+        private long scan(long indexed, boolean append) throws IOException {
+            long from = Math.max(indexed, 0);
+            long[] end = {from};
+            readLines(new BufferedInputStream(new ChannelInputStream(channel, from, size), 65536), from,
+                    Long.MAX_VALUE, line -> {
+                        long offset = end[0];
+                        int number = orderNumberOf(line);
+                        if(offset > indexed && offset - lastIndexedOffset >= INDEX_INTERVAL) {
+                            index.add(number, offset);
+                            lastIndexedOffset = offset;
+                            if(append) {
+                                writeEntry(number, offset);
+                            }
+                        }
+                        lastNumber = Math.max(lastNumber, number);
+                        end[0] = offset + line.getBytes(StandardCharsets.UTF_8).length + 1;
+                        return true;
+                    });
+            return end[0];
+        }
+
+        private void writeEntry(int number, long offset) {
+            try {
+                ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE).putInt(number).putLong(offset).flip();
+                while(entry.hasRemaining()) {
+                    indexChannel.write(entry);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private SparseIndex loadIndex() throws IOException {
+            SparseIndex loaded = new SparseIndex();
+            byte[] bytes = Files.readAllBytes(indexFile);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while(buffer.remaining() >= INDEX_ENTRY_SIZE) {
+                int number = buffer.getInt();
+                long offset = buffer.getLong();
+                // entries for lines that did not make it to disk are dropped
+                if(!compressed && offset >= size) {
+                    break;
+                }
+                loaded.add(number, offset);
+            }
+            return loaded;
+        }
+
+        private void writeIndex() throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(index.entries * INDEX_ENTRY_SIZE);
+            for(int i = 0; i < index.entries; i++) {
+                buffer.putInt(index.numbers[i]).putLong(index.offsets[i]);
+            }
+            Path tmp = Paths.get(indexFile + ".tmp");
+            Files.write(tmp, buffer.array());
+            Files.move(tmp, indexFile, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Gzips the sealed segment. The plain file is only deleted once the compressed copy is on disk.
+         */
+        synchronized void compress() throws IOException {
+            if(compressed) {
+                return;
+            }
+            if(index == null) {
+                load();
+            }
+            Path tmp = Paths.get(compressedFile + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tmp.toFile());
+                 GZIPOutputStream gzip = new GZIPOutputStream(out, 65536)) {
+                Files.copy(file, gzip);
+                gzip.finish();
+                out.getFD().sync();
+            }
+            Files.move(tmp, compressedFile, StandardCopyOption.ATOMIC_MOVE);
+            compressed = true;
+            close();
+            Files.delete(file);
+            System.out.println("Compressed order log segment " + compressedFile.getFileName());
+        }
+
+        synchronized void close() {
+            try {
+                if(channel != null && this != active) {
+                    channel.close();
+                    channel = null;
+                    index = null;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        void delete() throws IOException {
+            channel.close();
+            indexChannel.close();
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(indexFile);
+        }
+    }
+
+    /**
+     * An opened part of a segment: count bytes of a plain segment file from position on, or a stream of a compressed
+     * segment.
+     */
+    public static class Region {
+        public final FileChannel channel;
+        public final long position;
+        public final long count;
+        public final InputStream stream;
+
+        Region(FileChannel channel, long position, long count) {
+            this.channel = channel;
+            this.position = position;
+            this.count = count;
+            this.stream = null;
+        }
+
+        Region(InputStream stream) {
+            this.channel = null;
+            this.position = 0;
+            this.count = -1;
+            this.stream = stream;
+        }
+
+        public void close() {
+            try {
+                if(channel != null) {
+                    channel.close();
+                } else {
+                    stream.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Sorted (order number, offset) entries of one segment.
+     */
+    private static class SparseIndex {
+        int[] numbers = new int[64];
+        long[] offsets = new long[64];
+        int entries = 0;
+
+        synchronized void add(int number, long offset) {
+            if(entries == numbers.length) {
+                numbers = Arrays.copyOf(numbers, entries * 2);
+                offsets = Arrays.copyOf(offsets, entries * 2);
+            }
+            numbers[entries] = number;
+            offsets[entries] = offset;
+            entries++;
+        }
+
+        // From the last entry at or below the order number to the entry after it
+        synchronized long[] range(int orderNumber) {
+            int low = 0;
+            int high = entries - 1;
+            int floor = -1;
+            while(low <= high) {
+                int middle = (low + high) >>> 1;
+                if(numbers[middle] <= orderNumber) {
+                    floor = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            long from = floor < 0 ? 0 : offsets[floor];
+            long to = floor + 1 < entries ? offsets[floor + 1] : Long.MAX_VALUE;
+            return new long[] {from, to};
+        }
+    }
+
+    /**
+     * Reads a file channel from a position up to a limit with positioned reads, so concurrent readers do not share
+     * the channel position.
+     */
+    private static class ChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long limit;
+        private long position;
+
+        ChannelInputStream(FileChannel channel, long position, long limit) {
+            this.channel = channel;
+            this.position = position;
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(position >= limit) {
+                return -1;
+            }
+            int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, limit - position)), position);
+            if(read > 0) {
+                position += read;
+            }
+            return read;
+        }
+    }
+}
@@ -2,83 +2,118 @@ package orderservice;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
 
 /**
  * This microservice is used to handle order related logic. It handles the following kind of requests:
  *
  * 1. QUERY, order_number: This will return the order details for the given order number
  *
- * 2. BUY, product_name, quantity: This will perform a buy request and send a request to catalog service for
- * catalog details and quantity updates
+ * 2. BUY, product_name, quantity[, product_name, quantity ...]: This will perform a buy request and send a request to
+ * catalog service for catalog details and quantity updates. A cart of several products is bought with one catalog
+ * request, all or nothing, and becomes one order "order_number,product_name,quantity,product_name,quantity,...". The
+ * reply is the order number, -1 on failure, NOTLEADER, or UNCONFIRMED, order_number when the order was logged but not
+ * acknowledged by as many followers as REPLICATION_MODE asks for in time, or this node lost its term meanwhile. A buy
+ * that took the stock but could not be logged gives it back to the catalog with a cancel request before it fails.
  *
  * 3. PING: This request is used as a health check so that other services know that this service is alive
  *
- * 4. LEADER: This request is to assign this order service as the leader so all the order requests are processed in the
- * leader node and the remaining order services receive the updates to write it in their log file.
+ * 4. WHOISLEADER: Returns "leader_host,term" of the current leader, or -1 during an election. The order services elect
+ * their leader among themselves (see Election) with HEARTBEAT and VOTE requests, all the order requests are processed
+ * in the leader node and the remaining order services receive the updates to write it in their log file. Any other node
+ * answers a BUY with NOTLEADER.
  *
- * 5. FOLLOW, order_number, product_name, quantity: The leader order service sends this request to all the other order
- * services so the follower services can write the order details in their log.
+ * 5. FOLLOW, term, order_number, product_name, quantity[; order_number, product_name, quantity ...]: The leader order
+ * service streams the orders to all the other order services over persistent connections so the follower services can
+ * write the order details in their log. The follower writes a batch at once and replies with ACK, last_order_number,
+ * or with STALE, term when it already follows the leader of a newer term.
  *
  * 6. SYNC, order_number: Whenever a new order service is started, it will use this method to sync their logs with other
- * order service available. Once the order_service gets a sync request, it will read the order number and return all
- * the order details line by line since the given order number.
+ * order service available. Once the order_service gets a sync request, it will read the order number and stream all
+ * the order details since the given order number straight from its log files, followed by -1.
+ *
+ * 7. APPLIED: Returns the last order number in the log. The leader asks every follower when it (re)connects, and
+ * backfills the orders the follower is missing.
+ *
+ * 8. METRICS: Returns the replication mode and the latencies of buys and of their replication, see Replicator.
  */
 public class OrderService {
-     private static final String ORDER_LOG_FILE = "orderservice/logs/order_log.csv";
-    private static final Object fileLock = new Object();
-    private static boolean isLeader = false;
-
-    private static int nextOrderNumber = 0;
+    private static final String ORDER_LOG_DIRECTORY = "orderservice/logs";
+    private static final int SYNC_BATCH_SIZE = 8192;
+    private static final OrderLog orderLog = openOrderLog();
+    private static volatile boolean isLeader = false;
 
     private static List<String> orderHosts = new ArrayList<>();
+    private static Replicator replicator;
+    private static Election election;
 
     public static void main(String[] args) {
-        ServerSocket server = null;
         for(int i = 0; i < args.length; i++) {
             orderHosts.add(args[i]);
         }
-        loadOrderNumber();
+        replicator = new Replicator(orderHosts, 8086, orderLog);
+        // the orders are handed to the replication streams as they are logged, so the followers get them in order
+        orderLog.setAppendListener(OrderService::replicate);
 
         syncWithNodes();
         try {
-            // server is listening on port 8086
-            server = new ServerSocket(8086);
-            server.setReuseAddress(true);
-            System.out.println("OrderService running on port: 8086");
-
-
-            // create ThreadPool
-            ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(2);
+            election = new Election(orderHosts, 8086, orderLog, Paths.get(ORDER_LOG_DIRECTORY, "election_state"),
+                    new Election.Listener() {
+                        @Override
+                        public void elected(int term) {
+                            isLeader = true;
+                            replicator.start(term);
+                        }
 
-            // running infinite loop for getting client request
-            while (true) {
-                // socket object to receive incoming client requests
-                Socket client = server.accept();
+                        @Override
+                        public void deposed() {
+                            isLeader = false;
+                            replicator.stop();
+                        }
+                    });
+            // new orders are only numbered while their term is still led by this node
+            orderLog.setTermFence(election::isLeaderOf);
+            election.start();
+
+            // create ThreadPool, size configurable through ORDER_WORKERS
+            int workers = getWorkerCount();
+            ExecutorService executor = newExecutor(workers);
+
+            // server is listening on port 8086, the selector thread hands complete request lines to the executor
+            LineServer server = new LineServer(8086, executor, new ClientHandler());
+            System.out.println("OrderService running on port: 8086 with "
+                    + (useVirtualThreads() ? "virtual threads" : workers + " worker threads"));
+            server.serve();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-                // Displaying that new client is connected to server
-                System.out.println("New client connected: " + client.getInetAddress());
+    // EXECUTION_MODE=virtual runs every request on its own virtual thread instead of the fixed worker pool, including
+    // the blocking calls it makes to the catalog service and the follower replicas
+    private static boolean useVirtualThreads() {
+        return "virtual".equalsIgnoreCase(System.getenv("EXECUTION_MODE"));
+    }
 
-                // create a new thread object
-                ClientHandler clientSock = new ClientHandler(client);
+    private static ExecutorService newExecutor(int threads) {
+        if(useVirtualThreads()) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        return Executors.newFixedThreadPool(threads);
+    }
 
-                // Execute the client handler on the executor
-                executor.execute(clientSock);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (server != null) {
-                try {
-                    server.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+    // Buys mostly wait on the catalog service and the disk, so by default there are several workers per core
+    private static int getWorkerCount() {
+        String workers = System.getenv("ORDER_WORKERS");
+        if(workers == null || workers.isBlank()) {
+            return Runtime.getRuntime().availableProcessors() * 4;
         }
+        return Integer.parseInt(workers.trim());
     }
 
     private static void syncWithNodes() {
@@ -95,20 +130,28 @@ public class OrderService {
             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
 
             // reading from server
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8), 65536);
 
-            out.println("SYNC," + Integer.toString(nextOrderNumber));
+            out.println("SYNC," + Integer.toString(orderLog.getLastOrderNumber() + 1));
             out.flush();
 
-            // displaying server reply
+            // the missed orders are applied in large batches, one write and one force each
+            List<String> batch = new ArrayList<>(SYNC_BATCH_SIZE);
+            int synced = 0;
             String reply = in.readLine();
             while(!reply.equals("-1")) {
-                System.out.println("Received: " + reply);
-                String[] parts = reply.split(",");
-                logOrder(Integer.parseInt(parts[0].trim()), parts[1].trim(), Integer.parseInt(parts[2].trim()));
+                batch.add(reply);
+                if(batch.size() == SYNC_BATCH_SIZE) {
+                    orderLog.appendAll(batch);
+                    synced += batch.size();
+                    batch.clear();
+                }
                 reply = in.readLine();
-                nextOrderNumber++;
             }
+            orderLog.appendAll(batch);
+            synced += batch.size();
+            System.out.println("Synced " + synced + " orders from " + orderHost);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -142,157 +185,203 @@ public class OrderService {
     }
 
     // ClientHandler class
-    private static class ClientHandler implements Runnable {
-        private final Socket clientSocket;
-
-        // Constructor
-        public ClientHandler(Socket socket) {
-            this.clientSocket = socket;
-        }
-
-        public void run() {
-            PrintWriter out = null;
-            BufferedReader in = null;
-
-            try {
-                // get the outputstream of client
-                out = new PrintWriter(clientSocket.getOutputStream(), true);
-
-                // get the inputstream of client
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-
-                String line;
-                while ((line = in.readLine()) != null) {
-                    String[] parts = line.split(",");
-                    String requestType = parts[0].trim();
-                    if(requestType.equals("QUERY")) {
-                        String orderDetails = getOrderDetails(parts[1].trim());
-                        if(orderDetails == null) {
-                            out.println("-1");
-                        } else {
-                            out.println(orderDetails);
-                        }
-                    } else if(requestType.equals("BUY")) {
-                        // Parse order request and handle accordingly
-                        // For simplicity, let's assume line contains the product name and quantity separated by a comma
-                        String productName = parts[1].trim();
-                        int quantity = Integer.parseInt(parts[2].trim());
-
-                        // Simulate interaction with catalog service to check if the product is in stock
-                        if (isInStock(productName, quantity)) {
-                            // Generate order number
-                            // Log the order
-                            logOrder(nextOrderNumber, productName, quantity);
-                            // Send order number to the client
-                            out.println(nextOrderNumber);
-                            if(isLeader) {
-                                forwardRequests(nextOrderNumber, productName, quantity);
-                            }
-                            nextOrderNumber++;
-                        } else {
-                            // Send failure message to the client
-                            out.println("-1");
-                        }
-                    } else if(requestType.equals("PING")) {
-                        out.println("ALIVE");
-                    } else if(requestType.equals("LEADER")) {
-                        isLeader = true;
-                    } else if(requestType.equals("FOLLOW")) {
-                        logOrder(Integer.parseInt(parts[1].trim()), parts[2].trim(), Integer.parseInt(parts[3].trim()));
-                        nextOrderNumber = Integer.parseInt(parts[1].trim()) + 1;
-                    } else if(requestType.equals("SYNC")) {
-                        String orderNumber = parts[1].trim();
-                        List<String> logs = getLogs(orderNumber);
-
-                        for(String log : logs) {
-                            System.out.println(log);
-                            out.println(log);
-                        }
+    private static class ClientHandler implements LineServer.RequestHandler {
+        private final ConnectionPool catalogPool = ConnectionPool.forHost(System.getenv("CATALOG_HOST"), 8085);
+
+        public void handle(String line, LineServer.Connection out) {
+            String[] parts = line.split(",");
+            String requestType = parts[0].trim();
+            if(parts.length < fieldCount(requestType)) {
+                out.println("-1");
+                return;
+            }
+            if(requestType.equals("QUERY")) {
+                String orderDetails = getOrderDetails(parts[1].trim());
+                if(orderDetails == null) {
+                    out.println("-1");
+                } else {
+                    out.println(orderDetails);
+                }
+            } else if(requestType.equals("BUY")) {
+                // Parse order request and handle accordingly
+                // The line contains one or more product names and quantities separated by commas
+                List<String> items = new ArrayList<>();
+                for(int i = 1; i < parts.length; i += 2) {
+                    int quantity = i + 1 < parts.length ? parseNumber(parts[i + 1]) : -1;
+                    if(quantity <= 0) {
                         out.println("-1");
+                        return;
                     }
+                    items.add(parts[i].trim() + "," + quantity);
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                try {
-                    if (out != null) {
-                        out.close();
+
+                // only the leader holding its lease takes orders, the client has to ask for the new leader
+                int term = election.leaderTerm();
+                if(term < 0) {
+                    out.println("NOTLEADER");
+                    return;
+                }
+                // Simulate interaction with catalog service to check if the product is in stock
+                long start = System.nanoTime();
+                if (!items.isEmpty() && isInStock(items)) {
+                    // Log the order, the order number is generated as it is written and only while this node still
+                    // leads the term the order was taken in
+                    int orderNumber = logOrder(String.join(",", items), term);
+                    if(orderNumber == -1) {
+                        // fenced off or not written, nobody gets this order, so the catalog gets its stock back
+                        returnStock(items);
+                        out.println("-1");
+                    } else {
+                        // Send order number to the client, the client learns when it is not confirmed
+                        out.println(confirmOrder(orderNumber, term));
                     }
-                    if (in != null) {
-                        in.close();
-                        clientSocket.close();
+                } else {
+                    // Send failure message to the client
+                    out.println("-1");
+                }
+                replicator.recordBuy(System.nanoTime() - start);
+            } else if(requestType.equals("PING")) {
+                out.println("ALIVE");
+            } else if(requestType.equals("WHOISLEADER")) {
+                out.println(election.leader());
+            } else if(requestType.equals("HEARTBEAT")) {
+                int term = parseNumber(parts[1]);
+                out.println(term < 0 ? "-1" : election.onHeartbeat(term, parts[2].trim()));
+            } else if(requestType.equals("VOTE")) {
+                int term = parseNumber(parts[1]);
+                int lastOrderNumber = parseNumber(parts[3]);
+                out.println(term < 0 || lastOrderNumber < 0 ? "-1"
+                        : election.onVote(term, parts[2].trim(), lastOrderNumber));
+            } else if(requestType.equals("FOLLOW")) {
+                // orders from a leader of an older term are fenced off
+                int term = parseNumber(parts[1]);
+                if(term < 0) {
+                    out.println("-1");
+                } else if(!election.acceptsLeader(term)) {
+                    out.println("STALE," + election.getTerm());
+                } else {
+                    String records = line.substring(line.indexOf(',', line.indexOf(',') + 1) + 1);
+                    out.println("ACK," + follow(records));
+                }
+            } else if(requestType.equals("APPLIED")) {
+                out.println(orderLog.getLastOrderNumber());
+            } else if(requestType.equals("METRICS")) {
+                out.println(replicator.metrics());
+            } else if(requestType.equals("SYNC")) {
+                // stream the log files from the requested order on, the lines go out as they are on disk
+                int orderNumber = parseNumber(parts[1]);
+                for(OrderLog.Region region : orderNumber < 0 ? List.<OrderLog.Region>of() : getLogs(orderNumber)) {
+                    if(region.stream != null) {
+                        out.transfer(region.stream);
+                    } else {
+                        out.transfer(region.channel, region.position, region.count);
                     }
-                } catch (IOException e) {
-                    e.printStackTrace();
                 }
+                out.println("-1");
+            } else {
+                // unknown request
+                out.println("-1");
+            }
+        }
+
+        // The number of comma separated fields a request needs at least, its type included
+        private int fieldCount(String requestType) {
+            switch (requestType) {
+                case "VOTE":
+                    return 4;
+                case "BUY":
+                case "HEARTBEAT":
+                case "FOLLOW":
+                    return 3;
+                case "QUERY":
+                case "SYNC":
+                    return 2;
+                default:
+                    return 1;
             }
         }
 
-        private void forwardRequests(int orderNumber, String name, int quantity) {
-            for(String orderHost : orderHosts) {
-                try (Socket socket = new Socket(orderHost, 8086)) {
-                    // writing to server
+        // the number in a request field, or -1 if it is not a number
+        private int parseNumber(String field) {
+            try {
+                return Integer.parseInt(field.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
 
-                    PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                    out.println("FOLLOW," + orderNumber + "," + name + "," + quantity);
-                    out.flush();
-                } catch (IOException e) {
-                    System.out.println("Order host is not alive:" + orderHost);
+        // Writes a batch of replicated orders with one group commit, skipping the ones already in the log, and returns
+        // the last order number in the log
+        private int follow(String records) {
+            List<String> missing = new ArrayList<>();
+            try {
+                for(String record : records.split(";")) {
+                    int orderNumber = OrderLog.orderNumberOf(record);
+                    if(orderNumber > 0 && orderLog.read(orderNumber) == null) {
+                        missing.add(record);
+                    }
                 }
+                orderLog.appendAll(missing);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
+            return orderLog.getLastOrderNumber();
         }
 
+        // a single positioned read through the order number index
         private String getOrderDetails(String orderNumber) {
-            try (BufferedReader reader = new BufferedReader(new FileReader(ORDER_LOG_FILE))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String[] parts = line.split(",");
-                    if(parts[0].trim().equals(orderNumber)) {
-                        return line;
-                    }
-                }
-                // Extract the order number from the last line and increment by 1
+            try {
+                return orderLog.read(Integer.parseInt(orderNumber));
+            } catch (NumberFormatException e) {
                 return null;
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
 
-        private List<String> getLogs(String orderNumber) {
-            try (BufferedReader reader = new BufferedReader(new FileReader(ORDER_LOG_FILE))) {
-                String line;
-                List<String> logs = new ArrayList<>();
-                boolean found = false;
-                while ((line = reader.readLine()) != null) {
-                    String[] parts = line.split(",");
-                    if(parts[0].trim().equals(orderNumber) || found) {
-                        logs.add(line);
-                        found = true;
-                    }
-                }
-                // Extract the order number from the last line and increment by 1
-                return logs;
+        private List<OrderLog.Region> getLogs(int orderNumber) {
+            try {
+                return orderLog.regionsFrom(orderNumber);
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
 
-        private boolean isInStock(String productName, int quantity) {
-            String catalogHost = System.getenv("CATALOG_HOST");
-
-            try (Socket socket = new Socket(catalogHost, 8085)) {
-                // writing to server
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-
-                // reading from server
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        // The reply to a logged order, its number, or "UNCONFIRMED,<number>" if it is on fewer replicas than
+        // REPLICATION_MODE asks for or this node lost the term meanwhile
+        private String confirmOrder(int orderNumber, int term) {
+            // the replication streams send it to the followers in parallel, REPLICATION_MODE decides how many of them
+            // have to acknowledge it before the client gets the order number
+            if(!replicator.awaitReplicated(orderNumber)) {
+                System.out.println("Order " + orderNumber + " not acknowledged by enough followers");
+                return "UNCONFIRMED," + orderNumber;
+            }
+            // a leader that lost its lease meanwhile cannot tell whether the new leader has the order
+            if(!election.isLeaderOf(term)) {
+                System.out.println("Order " + orderNumber + " not confirmed, no longer leading term " + term);
+                return "UNCONFIRMED," + orderNumber;
+            }
+            return Integer.toString(orderNumber);
+        }
 
-                // sending the user input to server
-                out.println("buy:" + productName + "," + quantity);
-                out.flush();
+        // Puts the stock taken for an order that was not logged back into the catalog
+        private void returnStock(List<String> items) {
+            try {
+                String reply = catalogPool.request("cancel:" + String.join(";", items));
+                if(reply.trim().equals("-1")) {
+                    System.out.println("Catalog did not take back " + items);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
 
-                String reply = in.readLine();
-                if(Integer.parseInt(reply) == -1) {
+        private boolean isInStock(List<String> items) {
+            try {
+                // sending the buy request over a pooled connection to the catalog service, a cart in one request
+                String request = items.size() == 1 ? "buy:" + items.get(0) : "mbuy:" + String.join(";", items);
+                String reply = catalogPool.request(request);
+                if(reply.trim().equals("-1")) {
                     return false;
                 }
                 return true;
@@ -303,37 +392,33 @@ public class OrderService {
         }
     }
 
-    private static void loadOrderNumber() {
-        try (BufferedReader reader = new BufferedReader(new FileReader(ORDER_LOG_FILE))) {
-            String line;
-            String lastLine = null;
-            // Read until the last line is reached
-            while ((line = reader.readLine()) != null) {
-                lastLine = line;
-            }
-            // Extract the order number from the last line and increment by 1
-            int latestOrderNumber = 0;
-            if (lastLine != null) {
-                String[] parts = lastLine.split(",");
-                latestOrderNumber = Integer.parseInt(parts[0].trim());
-            }
-            nextOrderNumber = latestOrderNumber + 1;
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException(e);
+    // Append listener of the order log, called by its flusher with every written batch in log order
+    private static void replicate(List<String> records) {
+        if(!isLeader) {
+            return;
+        }
+        for(String record : records) {
+            replicator.replicate(OrderLog.orderNumberOf(record), record);
+        }
+    }
+
+    private static OrderLog openOrderLog() {
+        try {
+            return new OrderLog(Paths.get(ORDER_LOG_DIRECTORY));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    // Method to log order to a CSV file
-    private static void logOrder(int orderNumber, String productName, int quantity) {
-        synchronized (fileLock) {
-            // Write the next order number along with the order details to the CSV file
-            try (PrintWriter writer = new PrintWriter(new FileWriter(ORDER_LOG_FILE, true))) {
-                writer.println(orderNumber + "," + productName + "," + quantity);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    // Method to log order to a CSV file. Concurrent orders are group committed and this returns the order number once
+    // the order is on disk, or -1 if it could not be written or this node no longer leads the term
+    private static int logOrder(String items, int term) {
+        // Write the next order number along with the order details to the CSV file
+        try {
+            return orderLog.append(items, term);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
         }
     }
 }
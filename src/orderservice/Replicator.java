@@ -0,0 +1,433 @@
+package orderservice;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Replicates the leader's orders to the follower order services in the background.
+ *
+ * Every follower has its own thread with a persistent connection. Logged orders are queued for every follower and
+ * sent in batches, up to MAX_BATCH_SIZE records in one "FOLLOW,<term>,<record>;<record>;..." line, without waiting for
+ * the previous batches to be acknowledged. A follower that knows of a newer term replies "STALE,<term>" instead and the
+ * stream is dropped, the leader's election notices it was replaced. The follower writes a batch with one group commit
+ * and replies "ACK,<last order number>", which is the follower's acknowledged offset. At most MAX_IN_FLIGHT batches
+ * are unacknowledged at a time.
+ *
+ * When a follower cannot be reached it is retried in the background with a growing delay. After every (re)connect the
+ * follower is asked for the last order it has with "APPLIED" and everything after it is backfilled from the order
+ * log, which also covers orders that were dropped because the follower's queue was full. Followers ignore records
+ * they already have, so orders that are both backfilled and queued are written once.
+ *
+ * REPLICATION_MODE sets what a buy waits for before the client gets its order number:
+ * - async (default): nothing, the order is only on the leader's disk when the client hears about it.
+ * - majority: acknowledgements from enough followers that a majority of all replicas, the leader included, has it.
+ * - all: acknowledgements from every follower.
+ * The followers are replicated to in parallel, so a buy waits for the slowest follower it needs. A buy that does not
+ * get its acknowledgements within REPLICATION_TIMEOUT_MS (default 1000) is counted as a timeout and the client is told
+ * its order is unconfirmed.
+ *
+ * Whatever the mode, the time until a majority and until all followers acknowledged an order is measured for every
+ * order, so the "METRICS" request shows what each mode would cost. The orders are measured as the acknowledged
+ * offsets pass them, so every order is looked at once however long a follower is down.
+ */
+public class Replicator {
+    private static final int MAX_QUEUE_SIZE = 65536;
+    private static final int MAX_BATCH_SIZE = 512;
+    private static final int MAX_IN_FLIGHT = 64;
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    private static final int ACK_TIMEOUT_MS = 5000;
+    private static final long MIN_RETRY_MS = 100;
+    private static final long MAX_RETRY_MS = 5000;
+    private static final int MAX_TRACKED_ORDERS = 100000;
+
+    private final List<Follower> followers = new ArrayList<>();
+    private final OrderLog orderLog;
+    private final String mode;
+    private final int requiredAcks;
+    private final long timeoutMillis;
+    private boolean started = false;
+    // the term this replica leads, 0 while it is not the leader
+    private volatile int term = 0;
+
+    // orders not acknowledged by every follower yet, by order number, with the time they were queued
+    private final ConcurrentSkipListMap<Integer, Long> tracked = new ConcurrentSkipListMap<>();
+    // the size of tracked, whose own size() walks the whole map
+    private final AtomicInteger trackedCount = new AtomicInteger();
+    // the last order whose majority latency was measured, guarded by tracked
+    private int majorityMeasured = 0;
+    // buys waiting for acknowledgements, a ReentrantLock so waiting virtual threads do not pin their carrier
+    private final ReentrantLock ackLock = new ReentrantLock();
+    private final Condition acknowledgedCondition = ackLock.newCondition();
+    private final LatencyStats buyLatency = new LatencyStats();
+    private final LatencyStats waitLatency = new LatencyStats();
+    private final LatencyStats majorityLatency = new LatencyStats();
+    private final LatencyStats allLatency = new LatencyStats();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    public Replicator(List<String> hosts, int port, OrderLog orderLog) {
+        this.orderLog = orderLog;
+        for(String host : hosts) {
+            followers.add(new Follower(host, port));
+        }
+        String configuredMode = System.getenv("REPLICATION_MODE");
+        mode = configuredMode == null || configuredMode.isBlank() ? "async" : configuredMode.trim().toLowerCase();
+        if(mode.equals("majority")) {
+            requiredAcks = majority();
+        } else if(mode.equals("all")) {
+            requiredAcks = followers.size();
+        } else if(mode.equals("async")) {
+            requiredAcks = 0;
+        } else {
+            throw new IllegalArgumentException("Unknown REPLICATION_MODE " + configuredMode);
+        }
+        String timeout = System.getenv("REPLICATION_TIMEOUT_MS");
+        timeoutMillis = timeout == null || timeout.isBlank() ? 1000 : Long.parseLong(timeout.trim());
+        System.out.println("Replication mode " + mode + " to " + followers.size() + " followers");
+    }
+
+    // Followers that together with the leader are a majority of all replicas
+    private int majority() {
+        return (followers.size() + 1) / 2;
+    }
+
+    /**
+     * Starts streaming to the followers as the leader of the given term. The follower threads are started on the first
+     * call.
+     */
+    public synchronized void start(int term) {
+        this.term = term;
+        if(started) {
+            return;
+        }
+        started = true;
+        for(Follower follower : followers) {
+            Thread thread = new Thread(follower::run, "replicator-" + follower.host);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the streams when this replica is no longer the leader, the queued orders are dropped.
+     */
+    public void stop() {
+        term = 0;
+        for(Follower follower : followers) {
+            follower.queue.clear();
+        }
+    }
+
+    /**
+     * Queues a logged order "order_number,product_name,quantity" for every follower and returns right away.
+     */
+    public void replicate(int orderNumber, String record) {
+        if(!followers.isEmpty() && trackedCount.get() < MAX_TRACKED_ORDERS
+                && tracked.putIfAbsent(orderNumber, System.nanoTime()) == null) {
+            trackedCount.incrementAndGet();
+        }
+        for(Follower follower : followers) {
+            follower.offer(record);
+        }
+    }
+
+    /**
+     * Blocks until as many followers as REPLICATION_MODE asks for have acknowledged the order, at most
+     * REPLICATION_TIMEOUT_MS. Returns false on a timeout.
+     */
+    public boolean awaitReplicated(int orderNumber) {
+        if(requiredAcks == 0) {
+            return true;
+        }
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        ackLock.lock();
+        try {
+            while(acknowledgedBy(orderNumber) < requiredAcks) {
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0) {
+                    timeouts.incrementAndGet();
+                    waitLatency.record(System.nanoTime() - start);
+                    return false;
+                }
+                try {
+                    acknowledgedCondition.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        } finally {
+            ackLock.unlock();
+        }
+        waitLatency.record(System.nanoTime() - start);
+        return true;
+    }
+
+    public void recordBuy(long nanos) {
+        buyLatency.record(nanos);
+    }
+
+    /**
+     * One line of replication stats, latencies in milliseconds: the mode, the latency of buys and of their wait for
+     * acknowledgements, the time until a majority and until all followers acknowledged, the timeouts and the
+     * acknowledged offset of every follower.
+     */
+    public String metrics() {
+        StringBuilder offsets = new StringBuilder();
+        for(Follower follower : followers) {
+            offsets.append(offsets.length() > 0 ? "," : "").append(follower.host).append(':')
+                    .append(follower.acknowledged);
+        }
+        return "mode=" + mode + " followers=" + followers.size() + " buy=" + buyLatency + " wait=" + waitLatency
+                + " majority=" + majorityLatency + " all=" + allLatency + " timeouts=" + timeouts.get()
+                + " acknowledged=" + offsets;
+    }
+
+    private int acknowledgedBy(int orderNumber) {
+        int acks = 0;
+        for(Follower follower : followers) {
+            if(follower.acknowledged >= orderNumber) {
+                acks++;
+            }
+        }
+        return acks;
+    }
+
+    // The highest order number that at least the given number of followers acknowledged
+    private int acknowledgedOffset(int followerCount) {
+        int[] offsets = new int[followers.size()];
+        for(int i = 0; i < offsets.length; i++) {
+            offsets[i] = followers.get(i).acknowledged;
+        }
+        Arrays.sort(offsets);
+        return offsets[offsets.length - followerCount];
+    }
+
+    // Called with every acknowledgement: wakes up waiting buys and measures the orders it completes
+    private void onAcknowledged() {
+        ackLock.lock();
+        try {
+            acknowledgedCondition.signalAll();
+        } finally {
+            ackLock.unlock();
+        }
+        long now = System.nanoTime();
+        long staleNanos = TimeUnit.MILLISECONDS.toNanos(MAX_RETRY_MS * 2);
+        synchronized (tracked) {
+            // only the orders the majority offset moved past since the last acknowledgement
+            int majorityOffset = acknowledgedOffset(majority());
+            if(majorityOffset > majorityMeasured) {
+                for(long queuedAt : tracked.subMap(majorityMeasured, false, majorityOffset, true).values()) {
+                    majorityLatency.record(now - queuedAt);
+                }
+                majorityMeasured = majorityOffset;
+            }
+            // the oldest orders come first, pruning stops at the first one that is neither complete nor stale
+            int allOffset = acknowledgedOffset(followers.size());
+            Map.Entry<Integer, Long> oldest;
+            while((oldest = tracked.firstEntry()) != null) {
+                if(oldest.getKey() <= allOffset) {
+                    allLatency.record(now - oldest.getValue());
+                } else if(now - oldest.getValue() <= staleNanos) {
+                    break;
+                }
+                // an order a follower that is down has not acknowledged is dropped instead of measuring the outage
+                if(tracked.remove(oldest.getKey()) != null) {
+                    trackedCount.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * One follower and its replication stream.
+     */
+    private class Follower {
+        final String host;
+        final int port;
+        final LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<>(MAX_QUEUE_SIZE);
+        final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+        volatile boolean overflowed = false;
+        // the follower's acknowledged offset, the last order number it has written
+        volatile int acknowledged = 0;
+
+        Follower(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        void offer(String record) {
+            if(!queue.offer(record)) {
+                // the follower is too far behind, it is backfilled from the order log instead
+                overflowed = true;
+            }
+        }
+
+        void run() {
+            long retryDelay = MIN_RETRY_MS;
+            while(true) {
+                if(term == 0) {
+                    // not the leader (any more), nothing to stream
+                    retryDelay = MIN_RETRY_MS;
+                    sleep(retryDelay);
+                    continue;
+                }
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+                    socket.setTcpNoDelay(true);
+                    retryDelay = MIN_RETRY_MS;
+                    stream(socket);
+                } catch (IOException e) {
+                    System.out.println("Replication to " + host + " interrupted: " + e.getMessage());
+                }
+                sleep(retryDelay);
+                retryDelay = Math.min(retryDelay * 2, MAX_RETRY_MS);
+            }
+        }
+
+        private void sleep(long millis) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void stream(Socket socket) throws IOException {
+            int streamTerm = term;
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8));
+            socket.setSoTimeout(ACK_TIMEOUT_MS);
+
+            out.write("APPLIED\n");
+            out.flush();
+            int applied = Integer.parseInt(readReply(in).trim());
+            acknowledged = applied;
+            socket.setSoTimeout(0);
+            System.out.println("Replicating to " + host + " from order " + (applied + 1));
+
+            inFlight.drainPermits();
+            inFlight.release(MAX_IN_FLIGHT);
+            Thread reader = new Thread(() -> readAcks(socket, in), "replicator-acks-" + host);
+            reader.setDaemon(true);
+            reader.start();
+            try {
+                overflowed = false;
+                backfill(applied, streamTerm, out);
+                List<String> batch = new ArrayList<>(MAX_BATCH_SIZE);
+                while(!overflowed && !socket.isClosed() && term == streamTerm) {
+                    String record = queue.poll(1, TimeUnit.SECONDS);
+                    if(record == null) {
+                        continue;
+                    }
+                    batch.add(record);
+                    queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                    send(batch, streamTerm, out);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } finally {
+                socket.close();
+            }
+        }
+
+        // Sends every order in the log after the follower's last one
+        private void backfill(int applied, int streamTerm, Writer out) throws IOException, InterruptedException {
+            List<String> batch = new ArrayList<>(MAX_BATCH_SIZE);
+            int backfilled = 0;
+            List<OrderLog.Region> regions = orderLog.regionsFrom(applied + 1);
+            try {
+                for(OrderLog.Region region : regions) {
+                    InputStream stream = region.stream != null ? region.stream
+                            : Channels.newInputStream(region.channel.position(region.position));
+                    long remaining = region.stream != null ? Long.MAX_VALUE : region.count;
+                    BufferedReader lines = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8),
+                            65536);
+                    String line;
+                    while(remaining > 0 && (line = lines.readLine()) != null) {
+                        remaining -= line.getBytes(StandardCharsets.UTF_8).length + 1;
+                        batch.add(line);
+                        if(batch.size() == MAX_BATCH_SIZE) {
+                            backfilled += send(batch, streamTerm, out);
+                            batch.clear();
+                        }
+                    }
+                }
+            } finally {
+                for(OrderLog.Region region : regions) {
+                    region.close();
+                }
+            }
+            if(!batch.isEmpty()) {
+                backfilled += send(batch, streamTerm, out);
+            }
+            if(backfilled > 0) {
+                System.out.println("Backfilled " + backfilled + " orders to " + host);
+            }
+        }
+
+        private int send(List<String> batch, int streamTerm, Writer out) throws IOException, InterruptedException {
+            if(!inFlight.tryAcquire(ACK_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("No acknowledgement from " + host);
+            }
+            out.write("FOLLOW," + streamTerm + "," + String.join(";", batch) + "\n");
+            out.flush();
+            return batch.size();
+        }
+
+        // Runs until the stream breaks, the sender notices on its next write or when the acknowledgements stop
+        private void readAcks(Socket socket, BufferedReader in) {
+            try {
+                String reply;
+                while((reply = in.readLine()) != null) {
+                    if(reply.startsWith("ACK,")) {
+                        acknowledged = Math.max(acknowledged, Integer.parseInt(reply.substring(4).trim()));
+                        inFlight.release();
+                        onAcknowledged();
+                    } else if(reply.startsWith("STALE,")) {
+                        System.out.println(host + " follows a newer leader, term " + reply.substring(6).trim());
+                        break;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                if(!socket.isClosed()) {
+                    System.out.println("Replication to " + host + " lost: " + e.getMessage());
+                }
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private String readReply(BufferedReader in) throws IOException {
+            String reply = in.readLine();
+            if(reply == null) {
+                throw new IOException("Connection closed by " + host);
+            }
+            return reply;
+        }
+    }
+}